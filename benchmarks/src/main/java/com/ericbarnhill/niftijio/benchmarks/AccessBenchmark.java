@@ -0,0 +1,75 @@
+package com.ericbarnhill.niftijio.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ericbarnhill.niftijio.FourDimensionalArray;
+
+/**
+ * Time to visit every voxel of an array through the accessors of {@link FourDimensionalArray}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class AccessBenchmark
+{
+    @Param({"INT16", "FLOAT32", "FLOAT64"})
+    public String datatype;
+
+    @Param({"false", "true"})
+    public boolean scaled;
+
+    private FourDimensionalArray data;
+    private double[] row;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        data = Volumes.create(Volumes.datatype(datatype), true, Volumes.dims("large")).data;
+        if (scaled)
+            data.setScaling(0.5, 10);
+        row = new double[data.sizeX()];
+    }
+
+    @Benchmark
+    public double get()
+    {
+        double sum = 0;
+        for (int d = 0; d < data.dimension(); d++)
+            for (int k = 0; k < data.sizeZ(); k++)
+                for (int j = 0; j < data.sizeY(); j++)
+                    for (int i = 0; i < data.sizeX(); i++)
+                        sum += data.get(i, j, k, d);
+        return sum;
+    }
+
+    @Benchmark
+    public double getRow()
+    {
+        double sum = 0;
+        for (int d = 0; d < data.dimension(); d++)
+            for (int k = 0; k < data.sizeZ(); k++)
+                for (int j = 0; j < data.sizeY(); j++)
+                {
+                    data.getRow(j, k, d, row);
+                    for (int i = 0; i < row.length; i++)
+                        sum += row[i];
+                }
+        return sum;
+    }
+}
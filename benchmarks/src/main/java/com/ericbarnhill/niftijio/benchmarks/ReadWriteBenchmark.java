@@ -0,0 +1,109 @@
+package com.ericbarnhill.niftijio.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ericbarnhill.niftijio.FourDimensionalArray;
+import com.ericbarnhill.niftijio.NiftiVolume;
+
+/**
+ * Throughput of reading and writing whole volumes.
+ * <p/>
+ * A synthetic volume is written to a temporary file for every combination of datatype, byte order,
+ * compression and size.  Besides operations per second, each benchmark reports the secondary
+ * result megabytes, the rate of uncompressed voxel data in MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ReadWriteBenchmark
+{
+    @Param({"INT8", "UINT8", "INT16", "UINT16", "INT32", "UINT32", "INT64", "UINT64", "FLOAT32", "FLOAT64", "COMPLEX64"})
+    public String datatype;
+
+    @Param({"little", "big"})
+    public String order;
+
+    @Param({"nii", "nii.gz"})
+    public String format;
+
+    @Param({"small", "large"})
+    public String size;
+
+    private File dir;
+    private String input;
+    private String output;
+    private NiftiVolume volume;
+    private double megabytes;
+
+    /** Counts the uncompressed megabytes processed, reported as a rate. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput
+    {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        dir = File.createTempFile("niftijio", "bench");
+        dir.delete();
+        dir.mkdirs();
+
+        volume = Volumes.create(Volumes.datatype(datatype), order.equals("little"), Volumes.dims(size));
+        megabytes = Volumes.megabytes(volume);
+
+        input = new File(dir, "input." + format).getPath();
+        output = new File(dir, "output." + format).getPath();
+        volume.write(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        new File(input).delete();
+        new File(output).delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public FourDimensionalArray read(Throughput throughput) throws IOException
+    {
+        FourDimensionalArray data = NiftiVolume.read(input).data;
+        throughput.megabytes += megabytes;
+        return data;
+    }
+
+    @Benchmark
+    public void write(Throughput throughput) throws IOException
+    {
+        volume.write(output);
+        throughput.megabytes += megabytes;
+    }
+}
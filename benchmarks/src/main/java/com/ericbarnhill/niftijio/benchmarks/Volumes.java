@@ -0,0 +1,120 @@
+package com.ericbarnhill.niftijio.benchmarks;
+
+import java.util.Random;
+
+import com.ericbarnhill.niftijio.FourDimensionalArray;
+import com.ericbarnhill.niftijio.NiftiHeader;
+import com.ericbarnhill.niftijio.NiftiVolume;
+import com.ericbarnhill.niftijio.VoxelStorage;
+
+/**
+ * Synthetic volumes for the benchmarks.
+ * <p/>
+ * The intensities are a smooth blob with added noise, spanning most of the range of the datatype,
+ * so that gzip compresses them about as well as it compresses real images.
+ */
+final class Volumes
+{
+    private Volumes()
+    {
+    }
+
+    /** The NIFTI datatype code for a name such as INT16 or FLOAT32. */
+    static short datatype(String name)
+    {
+        if (name.equals("INT8")) return NiftiHeader.NIFTI_TYPE_INT8;
+        if (name.equals("UINT8")) return NiftiHeader.NIFTI_TYPE_UINT8;
+        if (name.equals("INT16")) return NiftiHeader.NIFTI_TYPE_INT16;
+        if (name.equals("UINT16")) return NiftiHeader.NIFTI_TYPE_UINT16;
+        if (name.equals("INT32")) return NiftiHeader.NIFTI_TYPE_INT32;
+        if (name.equals("UINT32")) return NiftiHeader.NIFTI_TYPE_UINT32;
+        if (name.equals("INT64")) return NiftiHeader.NIFTI_TYPE_INT64;
+        if (name.equals("UINT64")) return NiftiHeader.NIFTI_TYPE_UINT64;
+        if (name.equals("FLOAT32")) return NiftiHeader.NIFTI_TYPE_FLOAT32;
+        if (name.equals("FLOAT64")) return NiftiHeader.NIFTI_TYPE_FLOAT64;
+        if (name.equals("COMPLEX64")) return NiftiHeader.NIFTI_TYPE_COMPLEX64;
+        throw new IllegalArgumentException("unknown datatype " + name);
+    }
+
+    /** The sizes along x, y, z and time for a size name of small or large. */
+    static int[] dims(String size)
+    {
+        if (size.equals("small"))
+            return new int[] {64, 64, 32, 1};
+        if (size.equals("large"))
+            return new int[] {256, 256, 128, 1};
+        throw new IllegalArgumentException("unknown size " + size);
+    }
+
+    /** The largest magnitude generated for a datatype. */
+    private static double range(short datatype)
+    {
+        switch (datatype)
+        {
+        case NiftiHeader.NIFTI_TYPE_INT8:
+            return 120;
+        case NiftiHeader.NIFTI_TYPE_UINT8:
+            return 250;
+        case NiftiHeader.NIFTI_TYPE_INT16:
+            return 30000;
+        case NiftiHeader.NIFTI_TYPE_UINT16:
+            return 60000;
+        case NiftiHeader.NIFTI_TYPE_INT32:
+        case NiftiHeader.NIFTI_TYPE_UINT32:
+            return 2e9;
+        case NiftiHeader.NIFTI_TYPE_INT64:
+        case NiftiHeader.NIFTI_TYPE_UINT64:
+            return 1e15;
+        default:
+            return 1000;
+        }
+    }
+
+    private static boolean signed(short datatype)
+    {
+        return datatype != NiftiHeader.NIFTI_TYPE_UINT8 && datatype != NiftiHeader.NIFTI_TYPE_UINT16
+                && datatype != NiftiHeader.NIFTI_TYPE_UINT32 && datatype != NiftiHeader.NIFTI_TYPE_UINT64;
+    }
+
+    /** Create a volume with the given datatype, byte order and sizes. */
+    static NiftiVolume create(short datatype, boolean littleEndian, int[] dims)
+    {
+        NiftiHeader hdr = new NiftiHeader(dims[0], dims[1], dims[2], dims[3]);
+        hdr.setDatatype(datatype);
+        hdr.little_endian = littleEndian;
+        hdr.descrip = new StringBuffer("niftijio benchmark");
+
+        int nx = datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64 ? 2 * dims[0] : dims[0];
+        FourDimensionalArray data = new FourDimensionalArray(nx, dims[1], dims[2], dims[3], VoxelStorage.storageType(hdr));
+
+        boolean real = datatype == NiftiHeader.NIFTI_TYPE_FLOAT32 || datatype == NiftiHeader.NIFTI_TYPE_FLOAT64
+                || datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64;
+        double range = range(datatype);
+        double low = signed(datatype) ? -range : 0;
+        Random random = new Random(42);
+
+        for (int d = 0; d < dims[3]; d++)
+            for (int k = 0; k < dims[2]; k++)
+                for (int j = 0; j < dims[1]; j++)
+                    for (int i = 0; i < nx; i++)
+                    {
+                        double x = (double) i / nx - 0.5;
+                        double y = (double) j / dims[1] - 0.5;
+                        double z = (double) k / dims[2] - 0.5;
+                        double blob = Math.exp(-8 * (x * x + y * y + z * z));
+                        double v = low + (range - low) * Math.min(1, Math.max(0, 0.9 * blob + 0.05 * random.nextDouble()));
+                        data.set(i, j, k, d, real ? v : Math.floor(v));
+                    }
+
+        return new NiftiVolume(hdr, data);
+    }
+
+    /** The size of the voxel data of a volume, in megabytes. */
+    static double megabytes(NiftiVolume volume)
+    {
+        FourDimensionalArray data = volume.data;
+        long values = (long) data.sizeX() * data.sizeY() * data.sizeZ() * data.dimension();
+        int bytes = volume.header.datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64 ? 4 : volume.header.bitpix / 8;
+        return values * bytes / (double) (1 << 20);
+    }
+}
@@ -0,0 +1,428 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader of a NIFTI file driven by the completion of asynchronous reads.
+ * <p/>
+ * The file is read in chunks through an {@link AsynchronousFileChannel}, and every completed read
+ * is inflated if the file is compressed and decoded on the executor of the channel before the next
+ * read is issued.  The caller does not wait for the file, but on platforms without asynchronous file
+ * I/O, such as Linux, the channel performs each read on a thread of the executor, which blocks
+ * until the read completes.
+ */
+final class AsyncReader implements CompletionHandler<Integer, Void>
+{
+    /** The size of the first read when only the header is wanted. */
+    private static final int HEADER_CHUNK = 1 << 12;
+
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int FHCRC = 2;
+
+    final CompletableFuture<NiftiHeader> header = new CompletableFuture<NiftiHeader>();
+    final CompletableFuture<NiftiVolume> volume = new CompletableFuture<NiftiVolume>();
+
+    private final String filename;
+    private final boolean headerOnly;
+    private final IoProbe probe;
+    private AsynchronousFileChannel channel;
+    private ByteBuffer input;
+    private long position = 0;
+
+    // inflation of gzip members, when the file is compressed
+    private final boolean compressed;
+    private Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] inflated;
+    private final byte[] member = new byte[10];
+    private int state = HEADER;
+    private int count = 0;
+    private int flags = 0;
+    private int extra = 0;
+    private long size = 0;
+
+    private static final int HEADER = 0;
+    private static final int EXTRA_LENGTH = 1;
+    private static final int EXTRA = 2;
+    private static final int NAME = 3;
+    private static final int COMMENT = 4;
+    private static final int HEADER_CRC = 5;
+    private static final int DATA = 6;
+    private static final int TRAILER = 7;
+    private static final int END = 8;
+
+    // decoding of the uncompressed file
+    private ByteArrayOutputStream head = new ByteArrayOutputStream(NiftiHeader.ANZ_HDR_SIZE + 4);
+    private NiftiHeader hdr;
+    private NiftiVolume out;
+    private ByteBuffer pending;
+    private int bytes;
+    private long index = 0;
+    private long total;
+
+    private AsyncReader(String filename, boolean headerOnly)
+    {
+        this.filename = filename;
+        this.headerOnly = headerOnly;
+        this.compressed = filename.endsWith(".gz");
+        this.inflated = compressed ? new byte[VoxelCodec.CHUNK_BYTES] : null;
+        this.probe = IoProbe.start(headerOnly ? NiftiEvent.Kind.HEADER : NiftiEvent.Kind.READ, filename);
+        if (probe != null)
+            probe.compressed = compressed;
+    }
+
+    /** Start reading a file.
+     *
+     * @param filename the name of the file to read
+     * @param executor the executor of the channel, which runs the decoding and completes the futures
+     * @param headerOnly whether to stop once the header is read
+     * @return the reader, whose futures complete when the header and the volume are read
+     */
+    static AsyncReader start(String filename, ExecutorService executor, boolean headerOnly)
+    {
+        AsyncReader reader = new AsyncReader(filename, headerOnly);
+        try
+        {
+            reader.channel = AsynchronousFileChannel.open(Paths.get(filename),
+                    Collections.singleton(StandardOpenOption.READ), executor);
+            reader.input = ByteBuffer.allocate(headerOnly ? HEADER_CHUNK : VoxelCodec.CHUNK_BYTES);
+            if (reader.compressed)
+                reader.inflater = new Inflater(true);
+            reader.channel.read(reader.input, 0, null, reader);
+        }
+        catch (Throwable e)
+        {
+            reader.failed(e, null);
+        }
+        return reader;
+    }
+
+    public void completed(Integer n, Void attachment)
+    {
+        try
+        {
+            if (n < 0)
+            {
+                finish();
+                return;
+            }
+
+            long start = probe != null ? System.nanoTime() : 0;
+            position += n;
+            if (compressed)
+                inflate(input.array(), 0, n);
+            else
+                accept(input.array(), 0, n);
+            if (probe != null)
+            {
+                probe.fileBytes += n;
+                probe.workNanos += System.nanoTime() - start;
+            }
+
+            if (headerOnly ? hdr != null : (!compressed && index == total && hdr != null))
+            {
+                finish();
+                return;
+            }
+
+            ((Buffer) input).clear();
+            if (headerOnly && hdr == null)
+                input = ByteBuffer.allocate(VoxelCodec.CHUNK_BYTES);
+            channel.read(input, position, null, this);
+        }
+        catch (Throwable e)
+        {
+            failed(e, null);
+        }
+    }
+
+    public void failed(Throwable e, Void attachment)
+    {
+        close();
+        header.completeExceptionally(e);
+        volume.completeExceptionally(e);
+    }
+
+    private void finish() throws IOException
+    {
+        close();
+
+        if (hdr == null && head != null && head.size() >= NiftiHeader.ANZ_HDR_SIZE)
+        {
+            // a header without the extension flag
+            accept(new byte[NiftiHeader.ANZ_HDR_SIZE + 4 - head.size()], 0, NiftiHeader.ANZ_HDR_SIZE + 4 - head.size());
+        }
+        if (hdr == null)
+            throw new EOFException("truncated nifti header in " + filename);
+        if (headerOnly)
+        {
+            if (probe != null)
+                probe.finish();
+            header.complete(hdr);
+            volume.cancel(false);
+            return;
+        }
+        if (compressed && state != HEADER && state != END)
+            throw new EOFException("unexpected end of gzip file " + filename);
+        if (index < total)
+            throw new EOFException("unexpected end of voxel data in " + filename);
+
+        if (probe != null)
+            probe.finish();
+        volume.complete(out);
+    }
+
+    private void close()
+    {
+        try
+        {
+            if (channel != null)
+                channel.close();
+        }
+        catch (IOException e)
+        {
+            // nothing was written
+        }
+        if (inflater != null)
+            inflater.end();
+        inflater = null;
+    }
+
+    /** Inflate compressed bytes, parsing the header and trailer of every gzip member. */
+    private void inflate(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (state == DATA)
+            {
+                inflater.setInput(b, off, len);
+                try
+                {
+                    while (true)
+                    {
+                        long t = probe != null ? System.nanoTime() : 0;
+                        int n = inflater.inflate(inflated);
+                        if (probe != null)
+                        {
+                            probe.codecNanos += System.nanoTime() - t;
+                            probe.dataBytes += n;
+                        }
+                        if (n > 0)
+                        {
+                            crc.update(inflated, 0, n);
+                            size += n;
+                            accept(inflated, 0, n);
+                        }
+                        else if (inflater.finished() || inflater.needsInput())
+                        {
+                            break;
+                        }
+                        else if (inflater.needsDictionary())
+                        {
+                            throw new IOException("gzip data needs a preset dictionary");
+                        }
+                    }
+                }
+                catch (DataFormatException e)
+                {
+                    throw new IOException("corrupt gzip file " + filename, e);
+                }
+
+                if (!inflater.finished())
+                    return;
+
+                off += len - inflater.getRemaining();
+                len = inflater.getRemaining();
+                state = TRAILER;
+                count = 0;
+                continue;
+            }
+
+            int c = b[off++] & 0xff;
+            len--;
+            member(c);
+        }
+    }
+
+    /** Advance the parser of gzip member headers and trailers by one byte. */
+    private void member(int c) throws IOException
+    {
+        switch (state)
+        {
+        case END:
+            // bytes that do not start a gzip member are ignored, as GZIPInputStream does
+            return;
+        case HEADER:
+            member[count++] = (byte) c;
+            if (count == 2 && ((member[0] & 0xff) != 0x1f || (member[1] & 0xff) != 0x8b))
+            {
+                if (hdr == null)
+                    throw new IOException("not a gzip file: " + filename);
+                state = END;
+            }
+            else if (count == 10)
+            {
+                if (member[2] != 8)
+                    throw new IOException("unsupported gzip compression method in " + filename);
+                flags = member[3];
+                count = 0;
+                next(EXTRA_LENGTH);
+            }
+            return;
+        case EXTRA_LENGTH:
+            extra |= c << (8 * count++);
+            if (count == 2)
+            {
+                count = 0;
+                if (extra > 0)
+                    state = EXTRA;
+                else
+                    next(NAME);
+            }
+            return;
+        case EXTRA:
+            if (++count == extra)
+            {
+                count = 0;
+                next(NAME);
+            }
+            return;
+        case NAME:
+            if (c == 0)
+                next(COMMENT);
+            return;
+        case COMMENT:
+            if (c == 0)
+                next(HEADER_CRC);
+            return;
+        case HEADER_CRC:
+            if (++count == 2)
+            {
+                count = 0;
+                next(DATA);
+            }
+            return;
+        case TRAILER:
+            member[count++] = (byte) c;
+            if (count == 8)
+            {
+                if ((ParallelGZIPInputStream.int32(member, 0) & 0xffffffffL) != crc.getValue()
+                        || ParallelGZIPInputStream.int32(member, 4) != (int) size)
+                    throw new IOException("corrupt gzip trailer in " + filename);
+
+                crc.reset();
+                size = 0;
+                inflater.reset();
+                count = 0;
+                extra = 0;
+                state = HEADER;
+            }
+            return;
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    /** Move to a header state, skipping the optional fields that are absent. */
+    private void next(int s)
+    {
+        if (s == EXTRA_LENGTH && (flags & FEXTRA) == 0)
+            s = NAME;
+        if (s == NAME && (flags & FNAME) == 0)
+            s = COMMENT;
+        if (s == COMMENT && (flags & FCOMMENT) == 0)
+            s = HEADER_CRC;
+        if (s == HEADER_CRC && (flags & FHCRC) == 0)
+            s = DATA;
+        state = s;
+    }
+
+    /** Consume bytes of the uncompressed file. */
+    private void accept(byte[] b, int off, int len) throws IOException
+    {
+        if (hdr == null)
+        {
+            head.write(b, off, len);
+            if (!parseHeader())
+                return;
+
+            byte[] h = head.toByteArray();
+            head = null;
+            off = (int) Math.max(hdr.getVoxOffset(), 0);
+            b = h;
+            len = h.length - off;
+            if (headerOnly || len <= 0)
+                return;
+        }
+
+        if (headerOnly)
+            return;
+
+        while (len > 0 && index < total)
+        {
+            int n = Math.min(len, pending.remaining());
+            pending.put(b, off, n);
+            off += n;
+            len -= n;
+
+            if (!pending.hasRemaining() || len == 0)
+            {
+                int values = (int) Math.min(pending.position() / bytes, total - index);
+                ((Buffer) pending).flip();
+                out.data.storage().decode(pending, hdr.datatype, VoxelCodec.slope(hdr), hdr.scl_inter, index, values);
+                index += values;
+                pending.compact();
+            }
+        }
+    }
+
+    /** Parse the header once enough bytes have arrived, returning whether it is complete. */
+    private boolean parseHeader() throws IOException
+    {
+        int have = head.size();
+        if (have < NiftiHeader.ANZ_HDR_SIZE + 4)
+            return false;
+
+        byte[] h = head.toByteArray();
+        ByteBuffer bb = ByteBuffer.wrap(h);
+        if (have < NiftiHeader.headerLength(bb) || have < NiftiHeader.voxOffset(bb))
+            return false;
+
+        hdr = NiftiHeader.read(new ByteArrayInputStream(h), filename);
+        if (headerOnly)
+            return true;
+        header.complete(hdr);
+
+        VoxelCodec.check(hdr.datatype, "read");
+        long start = probe != null ? System.nanoTime() : 0;
+        out = new NiftiVolume(hdr, VoxelStorage.storageType(hdr));
+        if (probe != null)
+        {
+            probe.allocatedBytes = out.data.storage().sizeInBytes();
+            probe.allocateNanos = System.nanoTime() - start;
+            // the allocation happens within the decoding of a chunk, but is measured on its own
+            probe.workNanos -= probe.allocateNanos;
+        }
+        total = out.data.storage().size();
+        bytes = VoxelCodec.bytesPerValue(hdr.datatype);
+        pending = VoxelCodec.buffer(hdr);
+        return true;
+    }
+}
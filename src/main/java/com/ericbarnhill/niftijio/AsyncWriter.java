@@ -0,0 +1,249 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writer of a NIFTI file driven by the completion of asynchronous writes.
+ * <p/>
+ * The header and chunks of encoded voxels are written through an {@link AsynchronousFileChannel},
+ * and each chunk is encoded, and deflated if the file name ends with .gz, on the executor of the
+ * channel once the previous write has completed.  As for {@link AsyncReader}, the writes may block
+ * threads of the executor.  Like {@link NiftiVolume#write}, the file is not forced to the disk.
+ */
+final class AsyncWriter implements CompletionHandler<Integer, ByteBuffer>
+{
+    final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+    private final NiftiVolume volume;
+    private final NiftiHeader hdr;
+    private final boolean compressed;
+    private final IoProbe probe;
+    private AsynchronousFileChannel channel;
+    private long position = 0;
+
+    private final ByteBuffer chunk;
+    private final int capacity;
+    private final long total;
+    private long index = -1;
+    private boolean finished = false;
+
+    private Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private long size = 0;
+    private byte[] deflated;
+
+    private AsyncWriter(NiftiVolume volume, String filename)
+    {
+        this.volume = volume;
+        this.hdr = volume.header;
+        this.compressed = filename.endsWith(".gz");
+        this.chunk = VoxelCodec.buffer(hdr);
+        this.capacity = VoxelCodec.CHUNK_BYTES / VoxelCodec.bytesPerValue(VoxelCodec.encoding(hdr));
+        this.total = volume.data.storage().size();
+        this.probe = IoProbe.start(NiftiEvent.Kind.WRITE, filename);
+        if (probe != null)
+            probe.compressed = compressed;
+    }
+
+    /** Start writing a volume.
+     *
+     * @param volume the volume to write, which must not change until the write completes
+     * @param filename the name of the file to write
+     * @param executor the executor of the channel, which runs the encoding and completes the future
+     * @param level the deflate compression level for .gz files, from 0 to 9 or -1 for the default
+     * @return the writer, whose future completes when the file is written
+     */
+    static AsyncWriter start(NiftiVolume volume, String filename, ExecutorService executor, int level)
+    {
+        volume.header.filename = filename;
+        AsyncWriter writer = new AsyncWriter(volume, filename);
+        try
+        {
+            volume.check();
+            writer.channel = AsynchronousFileChannel.open(Paths.get(filename), EnumSet.of(StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), executor);
+            if (writer.compressed)
+            {
+                writer.deflater = new Deflater(level, true);
+                writer.deflated = new byte[VoxelCodec.CHUNK_BYTES];
+            }
+            writer.next();
+        }
+        catch (Throwable e)
+        {
+            writer.failed(e, null);
+        }
+        return writer;
+    }
+
+    public void completed(Integer n, ByteBuffer buffer)
+    {
+        try
+        {
+            position += n;
+            if (probe != null)
+                probe.fileBytes += n;
+            if (buffer.hasRemaining())
+                channel.write(buffer, position, buffer, this);
+            else
+                next();
+        }
+        catch (Throwable e)
+        {
+            failed(e, null);
+        }
+    }
+
+    public void failed(Throwable e, ByteBuffer buffer)
+    {
+        close();
+        done.completeExceptionally(e);
+    }
+
+    private void close()
+    {
+        try
+        {
+            if (channel != null)
+                channel.close();
+        }
+        catch (IOException e)
+        {
+            if (!done.isDone())
+                done.completeExceptionally(e);
+        }
+        if (deflater != null)
+            deflater.end();
+        deflater = null;
+    }
+
+    /** Produce and write the next piece of the file, or complete the future at the end. */
+    private void next() throws IOException
+    {
+        while (true)
+        {
+            long start = probe != null ? System.nanoTime() : 0;
+            ByteBuffer buffer = produce();
+            if (probe != null)
+                probe.workNanos += System.nanoTime() - start;
+            if (buffer == null)
+            {
+                close();
+                if (probe != null)
+                    probe.finish();
+                done.complete(null);
+                return;
+            }
+            if (buffer.hasRemaining())
+            {
+                channel.write(buffer, position, buffer, this);
+                return;
+            }
+        }
+    }
+
+    /** The next bytes to write, which may be empty while the deflater buffers input, or null at the end. */
+    private ByteBuffer produce() throws IOException
+    {
+        if (finished)
+            return null;
+
+        byte[] raw;
+        int length;
+        if (index < 0)
+        {
+            raw = NiftiVolume.encodeHeader(hdr);
+            length = raw.length;
+            index = 0;
+        }
+        else if (index < total)
+        {
+            int count = (int) Math.min(total - index, capacity);
+            ((Buffer) chunk).clear();
+            VoxelCodec.encode(chunk, hdr, volume.data, index, count);
+            raw = chunk.array();
+            length = chunk.position();
+            index += count;
+        }
+        else
+        {
+            finished = true;
+            if (!compressed)
+                return null;
+            long t = probe != null ? System.nanoTime() : 0;
+            byte[] out = finish();
+            if (probe != null)
+                probe.codecNanos += System.nanoTime() - t;
+            return ByteBuffer.wrap(out);
+        }
+
+        if (!compressed)
+            return ByteBuffer.wrap(raw, 0, length);
+
+        long t = probe != null ? System.nanoTime() : 0;
+        byte[] out = deflate(raw, length);
+        if (probe != null)
+        {
+            probe.codecNanos += System.nanoTime() - t;
+            probe.dataBytes += length;
+        }
+        if (position == 0)
+        {
+            // the first piece starts the gzip member
+            byte[] member = Arrays.copyOf(ParallelGZIPOutputStream.HEADER, ParallelGZIPOutputStream.HEADER.length + out.length);
+            System.arraycopy(out, 0, member, ParallelGZIPOutputStream.HEADER.length, out.length);
+            out = member;
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    private byte[] deflate(byte[] raw, int length)
+    {
+        crc.update(raw, 0, length);
+        size += length;
+        deflater.setInput(raw, 0, length);
+
+        int n = 0;
+        while (!deflater.needsInput())
+        {
+            if (n == deflated.length)
+                deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+            n += deflater.deflate(deflated, n, deflated.length - n);
+        }
+        return Arrays.copyOf(deflated, n);
+    }
+
+    /** Flush the deflater and append the gzip trailer. */
+    private byte[] finish()
+    {
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished())
+        {
+            if (n == deflated.length)
+                deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+            n += deflater.deflate(deflated, n, deflated.length - n);
+        }
+
+        byte[] out = Arrays.copyOf(deflated, n + 8);
+        int value = (int) crc.getValue();
+        for (int i = 0; i < 4; i++)
+        {
+            out[n + i] = (byte) (value >>> (8 * i));
+            out[n + 4 + i] = (byte) (size >>> (8 * i));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,403 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts many NIFTI files at once with a pipeline of stages connected by bounded queues.
+ * <p/>
+ * Each file passes through six stages: the file is read, inflated, decoded and optionally
+ * transformed, encoded, deflated and written.  Reading and writing run on a pool of I/O threads and
+ * the other stages on a pool of CPU threads, each stage with its own workers, so the files of a
+ * cohort are read, converted and written at the same time.  The queue in front of a stage holds
+ * at most one file more than its workers, so about twice as many files as there are workers in all
+ * stages are held in memory at once, however many files are converted.  A file that fails is
+ * reported and skipped without stopping the others.  Only single files, .nii or .nii.gz, are
+ * converted, and each file is held in memory whole, so files must be smaller than 2 GB.
+ */
+public class BatchConverter
+{
+    /** A file on its way through the stages. */
+    private static final class Job
+    {
+        final File input, output;
+        byte[] bytes;
+        NiftiVolume volume;
+        Throwable error;
+
+        Job(File input, File output)
+        {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    /** Marks the end of the files in a queue. */
+    private static final Job END = new Job(null, null);
+
+    /** A step of the pipeline, run by several workers taking jobs from one queue and putting them in the next. */
+    private abstract class Stage
+    {
+        final String name;
+        final int workers;
+        final AtomicInteger running;
+        final AtomicLong files = new AtomicLong(), bytes = new AtomicLong(), nanos = new AtomicLong();
+        BlockingQueue<Job> in, out;
+        Stage next;
+
+        Stage(String name, int workers)
+        {
+            this.name = name;
+            this.workers = workers;
+            this.running = new AtomicInteger(workers);
+        }
+
+        /** Process a job, returning the number of bytes it handled. */
+        abstract long process(Job job) throws Exception;
+
+        void run() throws InterruptedException
+        {
+            try
+            {
+                for (Job job = in.take(); job != END; job = in.take())
+                {
+                    if (job.error == null)
+                    {
+                        long start = System.nanoTime();
+                        try
+                        {
+                            bytes.addAndGet(process(job));
+                            files.incrementAndGet();
+                        }
+                        catch (Throwable e)
+                        {
+                            // an error such as running out of memory fails the file, not the worker
+                            job.error = e;
+                            job.bytes = null;
+                            job.volume = null;
+                        }
+                        nanos.addAndGet(System.nanoTime() - start);
+                    }
+                    out.put(job);
+                }
+            }
+            finally
+            {
+                // the last worker to finish tells the workers of the next stage
+                if (running.decrementAndGet() == 0)
+                    for (int i = 0; i < (next != null ? next.workers : 1); i++)
+                        out.put(END);
+            }
+        }
+    }
+
+    private final int ioThreads;
+    private final int cpuThreads;
+    private final int level;
+    private final Consumer<NiftiVolume> transform;
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private long elapsed = 0;
+
+    /** Create a converter that keeps the voxels as they are and compresses with the default level.
+     *
+     * @param ioThreads the number of threads reading and writing files, in each of the two stages
+     * @param cpuThreads the number of threads in each of the stages that inflate, decode, encode and deflate
+     */
+    public BatchConverter(int ioThreads, int cpuThreads)
+    {
+        this(ioThreads, cpuThreads, Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /** Create a converter.
+     *
+     * @param ioThreads the number of threads reading and writing files, in each of the two stages
+     * @param cpuThreads the number of threads in each of the stages that inflate, decode, encode and deflate
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @param transform applied to each volume after it is decoded and before it is encoded, or null,
+     *                  which may change its header as well as its voxels
+     */
+    public BatchConverter(int ioThreads, int cpuThreads, int level, Consumer<NiftiVolume> transform)
+    {
+        this.ioThreads = Math.max(ioThreads, 1);
+        this.cpuThreads = Math.max(cpuThreads, 1);
+        this.level = level;
+        this.transform = transform;
+    }
+
+    /** List the files to convert, either the .nii and .nii.gz files of a directory or the lines of a text file.
+     *
+     * @param path a directory, or a file naming one input file per line
+     * @return the input files, sorted by name for a directory
+     * @throws IOException if the path cannot be listed or read
+     */
+    public static List<File> inputs(String path) throws IOException
+    {
+        File file = new File(path);
+        List<File> out = new ArrayList<File>();
+        if (file.isDirectory())
+        {
+            File[] files = file.listFiles();
+            if (files == null)
+                throw new IOException("cannot list " + path);
+            Arrays.sort(files);
+            for (File f : files)
+                if (f.isFile() && (f.getName().endsWith(".nii") || f.getName().endsWith(".nii.gz")))
+                    out.add(f);
+        }
+        else
+        {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+                if (!line.trim().isEmpty())
+                    out.add(new File(line.trim()));
+        }
+        return out;
+    }
+
+    /** Convert files into a directory, keeping their names with the extension of the output format.
+     *
+     * @param inputs the files to convert
+     * @param outputDir the directory receiving the converted files, which must exist
+     * @param compress whether to write .nii.gz files or .nii files
+     * @return a message for each file that could not be converted
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the stages
+     */
+    public List<String> convert(List<File> inputs, File outputDir, final boolean compress) throws InterruptedException
+    {
+        stages.clear();
+        stages.add(new Stage("read", ioThreads)
+        {
+            long process(Job job) throws IOException
+            {
+                if (!job.input.isFile())
+                    throw new IOException("no such file");
+                job.bytes = Files.readAllBytes(job.input.toPath());
+                return job.bytes.length;
+            }
+        });
+        stages.add(new Stage("inflate", cpuThreads)
+        {
+            long process(Job job) throws IOException
+            {
+                if (!job.input.getName().endsWith(".gz"))
+                    return 0;
+
+                long n = job.bytes.length;
+                InputStream is = new GZIPInputStream(new ByteArrayInputStream(job.bytes), 1 << 16);
+                try
+                {
+                    job.bytes = readFully(is);
+                }
+                finally
+                {
+                    is.close();
+                }
+                return n;
+            }
+        });
+        stages.add(new Stage("decode", cpuThreads)
+        {
+            long process(Job job) throws IOException
+            {
+                long n = job.bytes.length;
+                String name = job.input.getPath();
+                job.volume = NiftiVolume.read(new ByteArrayInputStream(job.bytes), name.substring(0, name.length() - (name.endsWith(".gz") ? 3 : 0)), true);
+                job.bytes = null;
+                if (transform != null)
+                    transform.accept(job.volume);
+                return n;
+            }
+        });
+        stages.add(new Stage("encode", cpuThreads)
+        {
+            long process(Job job) throws IOException
+            {
+                NiftiVolume volume = job.volume;
+                volume.header.filename = job.output.getPath();
+                volume.check();
+
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                WritableByteChannel channel = Channels.newChannel(bos);
+                VoxelCodec.writeFully(channel, ByteBuffer.wrap(NiftiVolume.encodeHeader(volume.header)));
+                VoxelCodec.encode(channel, volume.header, volume.data);
+                job.volume = null;
+                job.bytes = bos.toByteArray();
+                return job.bytes.length;
+            }
+        });
+        stages.add(new Stage("deflate", cpuThreads)
+        {
+            long process(Job job) throws IOException
+            {
+                if (!compress)
+                    return 0;
+
+                long n = job.bytes.length;
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(job.bytes.length / 2);
+                GZIPOutputStream os = new LevelGZIPOutputStream(bos, 1 << 16, level);
+                os.write(job.bytes);
+                os.close();
+                job.bytes = bos.toByteArray();
+                return n;
+            }
+        });
+        stages.add(new Stage("write", ioThreads)
+        {
+            long process(Job job) throws IOException
+            {
+                Files.write(job.output.toPath(), job.bytes);
+                long n = job.bytes.length;
+                job.bytes = null;
+                return n;
+            }
+        });
+
+        // a queue holds one file more than the workers taking from it, so none of them waits for work
+        BlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(stages.get(0).workers + 1);
+        final BlockingQueue<Job> first = queue;
+        for (int i = 0; i < stages.size(); i++)
+        {
+            Stage stage = stages.get(i);
+            stage.in = queue;
+            stage.next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+            stage.out = queue = new ArrayBlockingQueue<Job>(stage.next != null ? stage.next.workers + 1 : 2);
+        }
+        final BlockingQueue<Job> last = queue;
+
+        // one more I/O thread feeds the files into the first queue
+        ExecutorService io = Executors.newFixedThreadPool(2 * ioThreads + 1, daemons("niftijio-io"));
+        ExecutorService cpu = Executors.newFixedThreadPool(4 * cpuThreads, daemons("niftijio-cpu"));
+        long start = System.nanoTime();
+        try
+        {
+            for (final Stage stage : stages)
+                for (int w = 0; w < stage.workers; w++)
+                    (stage.name.equals("read") || stage.name.equals("write") ? io : cpu).execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                stage.run();
+                            }
+                            catch (InterruptedException e)
+                            {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+
+            final List<Job> jobs = new ArrayList<Job>();
+            Set<File> outputs = new HashSet<File>();
+            for (File f : inputs)
+            {
+                String name = f.getName().replaceFirst("\\.nii(\\.gz)?$", "");
+                Job job = new Job(f, new File(outputDir, name + (compress ? ".nii.gz" : ".nii")));
+                if (!outputs.add(job.output))
+                    job.error = new IOException("converts to " + job.output + " like an earlier file");
+                jobs.add(job);
+            }
+            io.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (Job job : jobs)
+                        {
+                            String name = job.input.getName();
+                            if (job.error == null && !name.endsWith(".nii") && !name.endsWith(".nii.gz"))
+                                job.error = new IOException("not a single .nii or .nii.gz file");
+                            first.put(job);
+                        }
+                        for (int i = 0; i < stages.get(0).workers; i++)
+                            first.put(END);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            List<String> failures = new ArrayList<String>();
+            for (Job job = last.take(); job != END; job = last.take())
+                if (job.error != null)
+                    failures.add(job.input + ": " + (job.error.getMessage() != null ? job.error.getMessage() : job.error));
+            return failures;
+        }
+        finally
+        {
+            elapsed = System.nanoTime() - start;
+            io.shutdownNow();
+            cpu.shutdownNow();
+            io.awaitTermination(1, TimeUnit.MINUTES);
+            cpu.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer))
+            bos.write(buffer, 0, n);
+        return bos.toByteArray();
+    }
+
+    private static ThreadFactory daemons(final String name)
+    {
+        return new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /** The throughput of each stage of the last conversion, one line per stage.
+     *
+     * The bytes of a stage are those it consumed, compressed for inflate and uncompressed for
+     * deflate, and the busy time is summed over its workers.
+     */
+    public String report()
+    {
+        StringBuilder out = new StringBuilder();
+        for (Stage stage : stages)
+        {
+            double mb = stage.bytes.get() / 1e6, busy = stage.nanos.get() / 1e9;
+            out.append(String.format(Locale.ROOT, "%-8s %6d files %10.1f MB %8.2f s busy %8.1f MB/s%n",
+                    stage.name, stage.files.get(), mb, busy, busy > 0 ? mb / busy : 0));
+        }
+        out.append(String.format(Locale.ROOT, "elapsed  %.2f s%n", elapsed / 1e9));
+        return out.toString();
+    }
+}
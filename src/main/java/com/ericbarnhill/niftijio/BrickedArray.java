@@ -0,0 +1,199 @@
+package com.ericbarnhill.niftijio;
+
+/**
+ * Four-dimensional array stored in cubic bricks, for access to 3D neighbourhoods.
+ * <p/>
+ * A {@link FourDimensionalArray} keeps x varying fastest, so neighbours along z are nx*ny values
+ * apart and a stencil touches a different cache line and often a different page for each of them.
+ * Here each volume is split into bricks of n*n*n voxels that are stored contiguously, x fastest
+ * within a brick and then brick by brick, so all neighbours of most voxels share a few cache lines.
+ * The bricks at the upper edges are padded with zeros.
+ * <p/>
+ * The accessors match those of {@link FourDimensionalArray}, including the scaling of the double
+ * valued methods, and whole bricks can be copied in and out with {@link #getBrick} and
+ * {@link #setBrick}.  Volumes are written from the linear layout, see {@link #toLinear()}.
+ */
+public class BrickedArray
+{
+    /** The default number of voxels along each edge of a brick. */
+    public static final int DEFAULT_BRICK = 8;
+
+    private final VoxelStorage data;
+    private final int nx, ny, nz, dim;
+    private final int bx, by, bz;
+    private final int shift, mask;
+    // offsets of each coordinate in the storage, summed to index a voxel without multiplications
+    private final long[] xoff, yoff, zoff;
+    private final long volume;
+    private boolean scaled = false;
+    private double slope = 1, inter = 0;
+
+    /** Create an array of zeros.
+     *
+     * @param brick the number of voxels along each edge of a brick, a power of two up to 32
+     * @param datatype the NIFTI datatype used to hold the voxels in memory
+     */
+    public BrickedArray(int nx, int ny, int nz, int dim, int brick, short datatype)
+    {
+        if (brick < 1 || brick > 32 || Integer.bitCount(brick) != 1)
+            throw new IllegalArgumentException("brick size must be a power of two up to 32: " + brick);
+
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.dim = dim;
+        this.shift = Integer.numberOfTrailingZeros(brick);
+        this.mask = brick - 1;
+        this.bx = (nx + mask) >> shift;
+        this.by = (ny + mask) >> shift;
+        this.bz = (nz + mask) >> shift;
+        this.volume = ((long) bx * by * bz) << (3 * shift);
+        this.data = VoxelStorage.create(datatype, volume * dim);
+
+        this.xoff = new long[nx];
+        for (int x = 0; x < nx; x++)
+            xoff[x] = ((long) (x >> shift) << (3 * shift)) + (x & mask);
+        this.yoff = new long[ny];
+        for (int y = 0; y < ny; y++)
+            yoff[y] = ((long) (y >> shift) * bx << (3 * shift)) + ((y & mask) << shift);
+        this.zoff = new long[nz];
+        for (int z = 0; z < nz; z++)
+            zoff[z] = ((long) (z >> shift) * bx * by << (3 * shift)) + ((z & mask) << (2 * shift));
+    }
+
+    /** Copy a linear array into bricks of the default size. */
+    public BrickedArray(FourDimensionalArray src)
+    {
+        this(src, DEFAULT_BRICK);
+    }
+
+    /** Copy a linear array into bricks, keeping its datatype and scaling. */
+    public BrickedArray(FourDimensionalArray src, int brick)
+    {
+        this(src.sizeX(), src.sizeY(), src.sizeZ(), src.dimension(), brick, src.datatype());
+        this.scaled = src.isScaled();
+        this.slope = src.slope();
+        this.inter = src.inter();
+
+        VoxelStorage from = src.storage();
+        double[] row = new double[nx];
+        for (int d = 0; d < dim; d++)
+            for (int z = 0; z < nz; z++)
+                for (int y = 0; y < ny; y++)
+                {
+                    from.get((((long) d * nz + z) * ny + y) * nx, row, 0, nx);
+                    for (int x = 0; x < nx; x += mask + 1)
+                        data.set(index(x, y, z, d), row, x, Math.min(mask + 1, nx - x));
+                }
+    }
+
+    /** Copy the voxels back into a linear array with the same datatype and scaling. */
+    public FourDimensionalArray toLinear()
+    {
+        FourDimensionalArray out = new FourDimensionalArray(nx, ny, nz, dim, data.datatype());
+        if (scaled)
+            out.setScaling(slope, inter);
+
+        VoxelStorage to = out.storage();
+        double[] row = new double[nx];
+        for (int d = 0; d < dim; d++)
+            for (int z = 0; z < nz; z++)
+                for (int y = 0; y < ny; y++)
+                {
+                    for (int x = 0; x < nx; x += mask + 1)
+                        data.get(index(x, y, z, d), row, x, Math.min(mask + 1, nx - x));
+                    to.set((((long) d * nz + z) * ny + y) * nx, row, 0, nx);
+                }
+
+        return out;
+    }
+
+    private long index(int x, int y, int z, int d)
+    {
+        return xoff[x] + yoff[y] + zoff[z] + d * volume;
+    }
+
+    /** The index of the first voxel of a brick, which may lie beyond the voxels of the volume. */
+    private long brick(int i, int j, int k, int d)
+    {
+        return ((((long) d * bz + k) * by + j) * bx + i) << (3 * shift);
+    }
+
+    public double get(int x, int y, int z, int d)
+    {
+        double v = data.get(index(x, y, z, d));
+        return scaled ? v * slope + inter : v;
+    }
+
+    public void set(int x, int y, int z, int d, double val)
+    {
+        data.set(index(x, y, z, d), scaled ? (val - inter) / slope : val);
+    }
+
+    /** Scale the stored values when they are accessed as doubles, see {@link FourDimensionalArray#setScaling}. */
+    public void setScaling(double slope, double inter)
+    {
+        this.scaled = slope != 0 && (slope != 1 || inter != 0);
+        this.slope = scaled ? slope : 1;
+        this.inter = scaled ? inter : 0;
+    }
+
+    /** Copy the values of a brick into dst, x fastest, including the padding of edge bricks.
+     *
+     * @param i the brick index along x, from 0 to {@link #bricksX()}
+     * @param j the brick index along y
+     * @param k the brick index along z
+     * @param d the index along the fourth dimension
+     * @param dst an array of at least brickSize()^3 values
+     */
+    public void getBrick(int i, int j, int k, int d, double[] dst)
+    {
+        int n = 1 << (3 * shift);
+        data.get(brick(i, j, k, d), dst, 0, n);
+        if (scaled)
+            for (int v = 0; v < n; v++)
+                dst[v] = dst[v] * slope + inter;
+    }
+
+    /** Set the values of a brick from src, x fastest, where the values in the padding are kept but never read. */
+    public void setBrick(int i, int j, int k, int d, double[] src)
+    {
+        int n = 1 << (3 * shift);
+        if (scaled)
+        {
+            double[] raw = new double[n];
+            for (int v = 0; v < n; v++)
+                raw[v] = (src[v] - inter) / slope;
+            src = raw;
+        }
+        data.set(brick(i, j, k, d), src, 0, n);
+    }
+
+    public boolean isScaled() {return scaled;}
+    public double slope() {return slope;}
+    public double inter() {return inter;}
+
+    public byte getByte(int x, int y, int z, int d) {return data.getByte(index(x, y, z, d));}
+    public void setByte(int x, int y, int z, int d, byte val) {data.setByte(index(x, y, z, d), val);}
+    public short getShort(int x, int y, int z, int d) {return data.getShort(index(x, y, z, d));}
+    public void setShort(int x, int y, int z, int d, short val) {data.setShort(index(x, y, z, d), val);}
+    public int getInt(int x, int y, int z, int d) {return data.getInt(index(x, y, z, d));}
+    public void setInt(int x, int y, int z, int d, int val) {data.setInt(index(x, y, z, d), val);}
+    public float getFloat(int x, int y, int z, int d) {return data.getFloat(index(x, y, z, d));}
+    public void setFloat(int x, int y, int z, int d, float val) {data.setFloat(index(x, y, z, d), val);}
+    public double getDouble(int x, int y, int z, int d) {return data.getDouble(index(x, y, z, d));}
+    public void setDouble(int x, int y, int z, int d, double val) {data.setDouble(index(x, y, z, d), val);}
+
+    public int sizeX() {return nx;}
+    public int sizeY() {return ny;}
+    public int sizeZ() {return nz;}
+    public int dimension() {return dim;}
+    public short datatype() {return data.datatype();}
+    /** The number of voxels along each edge of a brick. */
+    public int brickSize() {return 1 << shift;}
+    public int bricksX() {return bx;}
+    public int bricksY() {return by;}
+    public int bricksZ() {return bz;}
+    /** The storage of the bricks, which holds the padding as well as the voxels. */
+    public VoxelStorage storage() {return data;}
+}
@@ -0,0 +1,357 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Voxel storage that decodes values lazily from byte buffers laid out exactly as in a NIFTI file.
+ * <p/>
+ * The buffers are typically memory mapped regions of an uncompressed file, in which case opening a
+ * volume only costs the header and the operating system shares the pages between processes.  They
+ * may also be direct buffers allocated outside of the heap, which keeps large volumes out of reach
+ * of the garbage collector.  Each buffer holds {@link #CHUNK_BYTES} bytes, except for the last one.
+ * <p/>
+ * {@link #close()} releases mapped and direct buffers right away instead of when they are collected,
+ * and any access after that fails.
+ */
+public class BufferStorage extends VoxelStorage
+{
+    /** The number of bytes held by each buffer. */
+    public static final int CHUNK_BYTES = 1 << 30;
+
+    private final ByteBuffer[] buffers;
+    private final int bshift;
+    private final boolean real;
+    private final ByteOrder order;
+
+    /**
+     * @param datatype the NIFTI datatype of the encoded voxels
+     * @param size the number of voxels
+     * @param buffers the encoded voxels, split into buffers of {@link #CHUNK_BYTES} bytes
+     * @param order the byte order of the encoded voxels
+     */
+    public BufferStorage(short datatype, long size, ByteBuffer[] buffers, ByteOrder order)
+    {
+        super(datatype, size, VoxelCodec.bytesPerValue(datatype), CHUNK_BYTES);
+        this.bshift = Integer.numberOfTrailingZeros(VoxelCodec.bytesPerValue(datatype));
+        this.buffers = buffers;
+        this.order = order;
+        this.real = datatype == NiftiHeader.NIFTI_TYPE_FLOAT32
+                || datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64
+                || datatype == NiftiHeader.NIFTI_TYPE_FLOAT64;
+
+        if (buffers.length != pages())
+            throw new IllegalArgumentException("expected " + pages() + " buffers but found " + buffers.length);
+
+        for (int b = 0; b < buffers.length; b++)
+        {
+            if (buffers[b].capacity() < pageLength(b) << bshift)
+                throw new IllegalArgumentException("buffer " + b + " is too small");
+            buffers[b].order(order);
+        }
+    }
+
+    /** Map the voxels of a file region into memory.
+     *
+     * @param channel the file holding the voxels
+     * @param offset the position of the first voxel in the file
+     * @param datatype the NIFTI datatype of the voxels
+     * @param size the number of voxels
+     * @param order the byte order of the voxels
+     * @param mode the mapping mode, which decides whether writes are possible and where they go
+     * @return the mapped storage
+     * @throws IOException
+     */
+    public static BufferStorage map(FileChannel channel, long offset, short datatype, long size, ByteOrder order, FileChannel.MapMode mode) throws IOException
+    {
+        int bytes = VoxelCodec.bytesPerValue(datatype);
+        long length = size * bytes;
+        if (channel.size() < offset + length)
+            throw new IOException("file is truncated, expected " + (offset + length) + " bytes but found " + channel.size());
+
+        long voxels = CHUNK_BYTES / bytes;
+        ByteBuffer[] buffers = new ByteBuffer[(int) ((size + voxels - 1) / voxels)];
+        for (int b = 0; b < buffers.length; b++)
+        {
+            long start = (long) b * CHUNK_BYTES;
+            buffers[b] = channel.map(mode, offset + start, Math.min(CHUNK_BYTES, length - start));
+        }
+
+        return new BufferStorage(datatype, size, buffers, order);
+    }
+
+    /** Allocate zeroed storage outside of the heap, which counts against -XX:MaxDirectMemorySize.
+     *
+     * @param datatype the NIFTI datatype of the voxels
+     * @param size the number of voxels
+     * @param order the byte order of the voxels, where that of the file lets them be decoded with a plain copy
+     * @return the storage, which should be closed when it is no longer needed
+     */
+    public static BufferStorage allocateDirect(short datatype, long size, ByteOrder order)
+    {
+        int bytes = VoxelCodec.bytesPerValue(datatype);
+        long length = size * bytes;
+        long voxels = CHUNK_BYTES / bytes;
+        ByteBuffer[] buffers = new ByteBuffer[(int) ((size + voxels - 1) / voxels)];
+        try
+        {
+            for (int b = 0; b < buffers.length; b++)
+                buffers[b] = ByteBuffer.allocateDirect((int) Math.min(CHUNK_BYTES, length - (long) b * CHUNK_BYTES));
+        }
+        catch (OutOfMemoryError e)
+        {
+            for (ByteBuffer buffer : buffers)
+                if (buffer != null)
+                    release(buffer);
+            throw e;
+        }
+
+        return new BufferStorage(datatype, size, buffers, order);
+    }
+
+    public void close()
+    {
+        synchronized (buffers)
+        {
+            for (int b = 0; b < buffers.length; b++)
+            {
+                if (buffers[b] != null)
+                    release(buffers[b]);
+                buffers[b] = null;
+            }
+        }
+    }
+
+    /** Free the memory of a direct or mapped buffer without waiting for the garbage collector. */
+    private static void release(ByteBuffer buffer)
+    {
+        if (!buffer.isDirect())
+            return;
+
+        try
+        {
+            if (Cleaner.UNSAFE != null)
+            {
+                Cleaner.INVOKE.invoke(Cleaner.UNSAFE, buffer);
+            }
+            else
+            {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buffer);
+                if (c != null)
+                    c.getClass().getMethod("clean").invoke(c);
+            }
+        }
+        catch (Exception e)
+        {
+            // the buffer is left to the garbage collector
+        }
+    }
+
+    /** The cleaner of direct buffers on java 9 and later, looked up once. */
+    private static final class Cleaner
+    {
+        static final Object UNSAFE;
+        static final Method INVOKE;
+
+        static
+        {
+            Object unsafe = null;
+            Method invoke = null;
+            try
+            {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                invoke = type.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+            }
+            catch (Exception e)
+            {
+                // java 8, where buffers expose their cleaner
+            }
+            UNSAFE = invoke != null ? unsafe : null;
+            INVOKE = invoke;
+        }
+    }
+
+    public long sizeInBytes()
+    {
+        return size << bshift;
+    }
+
+    void decode(ByteBuffer src, short type, double slope, double inter, long start, int count)
+    {
+        if (type == datatype && slope == 0 && src.order() == order)
+            copy(src, start, count, true);
+        else
+            super.decode(src, type, slope, inter, start, count);
+    }
+
+    void encode(ByteBuffer dst, short type, double slope, double inter, long start, int count)
+    {
+        if (type == datatype && slope == 0 && dst.order() == order)
+            copy(dst, start, count, false);
+        else
+            super.encode(dst, type, slope, inter, start, count);
+    }
+
+    /** Copy encoded values between the position of a buffer, which is advanced past them, and the voxels from start. */
+    private void copy(ByteBuffer other, long start, int count, boolean decode)
+    {
+        int pos = other.position();
+        while (count > 0)
+        {
+            int page = (int) (start >>> shift);
+            int off = (int) start & mask;
+            int n = Math.min(count, pageLength(page) - off);
+
+            ByteBuffer voxels = buffers[page].duplicate();
+            VoxelCodec.position(voxels, off << bshift);
+            ByteBuffer part = other.duplicate();
+            ((Buffer) part).limit(pos + (n << bshift));
+            VoxelCodec.position(part, pos);
+            if (decode)
+            {
+                voxels.put(part);
+            }
+            else
+            {
+                ((Buffer) voxels).limit((off + n) << bshift);
+                part.put(voxels);
+            }
+
+            pos += n << bshift;
+            start += n;
+            count -= n;
+        }
+        VoxelCodec.position(other, pos);
+    }
+
+    public double get(long idx)
+    {
+        ByteBuffer buffer = buffers[(int) (idx >>> shift)];
+        int pos = ((int) idx & mask) << bshift;
+
+        return VoxelCodec.value(buffer, pos, datatype);
+    }
+
+    public void set(long idx, double val)
+    {
+        ByteBuffer buffer = buffers[(int) (idx >>> shift)];
+        int pos = ((int) idx & mask) << bshift;
+
+        switch (datatype)
+        {
+        case NiftiHeader.NIFTI_TYPE_INT8:
+            buffer.put(pos, (byte) round(val, Byte.MIN_VALUE, Byte.MAX_VALUE));
+            break;
+        case NiftiHeader.NIFTI_TYPE_UINT8:
+            buffer.put(pos, (byte) round(val, 0, 0xff));
+            break;
+        case NiftiHeader.NIFTI_TYPE_INT16:
+            buffer.putShort(pos, (short) round(val, Short.MIN_VALUE, Short.MAX_VALUE));
+            break;
+        case NiftiHeader.NIFTI_TYPE_UINT16:
+            buffer.putShort(pos, (short) round(val, 0, 0xffff));
+            break;
+        case NiftiHeader.NIFTI_TYPE_INT32:
+            buffer.putInt(pos, (int) round(val, Integer.MIN_VALUE, Integer.MAX_VALUE));
+            break;
+        case NiftiHeader.NIFTI_TYPE_UINT32:
+            buffer.putInt(pos, (int) round(val, 0, 0xffffffffL));
+            break;
+        case NiftiHeader.NIFTI_TYPE_INT64:
+        case NiftiHeader.NIFTI_TYPE_UINT64:
+            buffer.putLong(pos, (long) Math.rint(val));
+            break;
+        case NiftiHeader.NIFTI_TYPE_FLOAT32:
+        case NiftiHeader.NIFTI_TYPE_COMPLEX64:
+            buffer.putFloat(pos, (float) val);
+            break;
+        default:
+            buffer.putDouble(pos, val);
+        }
+    }
+
+    public byte getByte(long idx)
+    {
+        if (bshift != 0)
+            return super.getByte(idx);
+        return buffers[(int) (idx >>> shift)].get((int) idx & mask);
+    }
+
+    public void setByte(long idx, byte val)
+    {
+        if (bshift != 0)
+            super.setByte(idx, val);
+        else
+            buffers[(int) (idx >>> shift)].put((int) idx & mask, val);
+    }
+
+    public short getShort(long idx)
+    {
+        if (bshift != 1)
+            return super.getShort(idx);
+        return buffers[(int) (idx >>> shift)].getShort(((int) idx & mask) << 1);
+    }
+
+    public void setShort(long idx, short val)
+    {
+        if (bshift != 1)
+            super.setShort(idx, val);
+        else
+            buffers[(int) (idx >>> shift)].putShort(((int) idx & mask) << 1, val);
+    }
+
+    public int getInt(long idx)
+    {
+        if (bshift != 2 || real)
+            return super.getInt(idx);
+        return buffers[(int) (idx >>> shift)].getInt(((int) idx & mask) << 2);
+    }
+
+    public void setInt(long idx, int val)
+    {
+        if (bshift != 2 || real)
+            super.setInt(idx, val);
+        else
+            buffers[(int) (idx >>> shift)].putInt(((int) idx & mask) << 2, val);
+    }
+
+    public float getFloat(long idx)
+    {
+        if (bshift != 2 || !real)
+            return super.getFloat(idx);
+        return buffers[(int) (idx >>> shift)].getFloat(((int) idx & mask) << 2);
+    }
+
+    public void setFloat(long idx, float val)
+    {
+        if (bshift != 2 || !real)
+            super.setFloat(idx, val);
+        else
+            buffers[(int) (idx >>> shift)].putFloat(((int) idx & mask) << 2, val);
+    }
+
+    public double getDouble(long idx)
+    {
+        if (bshift != 3 || !real)
+            return super.getDouble(idx);
+        return buffers[(int) (idx >>> shift)].getDouble(((int) idx & mask) << 3);
+    }
+
+    public void setDouble(long idx, double val)
+    {
+        if (bshift != 3 || !real)
+            super.setDouble(idx, val);
+        else
+            buffers[(int) (idx >>> shift)].putDouble(((int) idx & mask) << 3, val);
+    }
+}
@@ -1,7 +1,9 @@
 package com.ericbarnhill.niftijio;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.List;
 
 public class Example
 {
@@ -12,7 +14,22 @@ public class Example
             if (args.length == 1 && "--help".equals(args[0]))
             {
                 System.out.println("Usage: niftijio input.nii.gz [output]");
-                System.out.println("Description: read a volume and optionally write it out again");
+                System.out.println("       niftijio --batch input-dir|input-list output-dir [nii|nii.gz]");
+                System.out.println("Description: read a volume and optionally write it out again, or convert many volumes at once");
+                return;
+            }
+            if (args.length >= 3 && "--batch".equals(args[0]))
+            {
+                int cpus = Runtime.getRuntime().availableProcessors();
+                BatchConverter converter = new BatchConverter(2, cpus);
+                List<File> inputs = BatchConverter.inputs(args[1]);
+                boolean compress = args.length < 4 || !"nii".equals(args[3]);
+
+                List<String> failures = converter.convert(inputs, new File(args[2]), compress);
+                for (String failure : failures)
+                    System.err.println("error: " + failure);
+                System.out.println("converted " + (inputs.size() - failures.size()) + " of " + inputs.size() + " files");
+                System.out.print(converter.report());
                 return;
             }
             if (args.length == 0)
@@ -36,10 +53,10 @@ public class Example
 
                 NiftiVolume volume = NiftiVolume.read(args[0]);
 
-                int nx = volume.header.dim[1];
-                int ny = volume.header.dim[2];
-                int nz = volume.header.dim[3];
-                int dim = volume.header.dim[4];
+                int nx = (int) volume.header.getDim(1);
+                int ny = (int) volume.header.getDim(2);
+                int nz = (int) volume.header.getDim(3);
+                int dim = (int) volume.header.getDim(4);
 
                 if (dim == 0)
                     dim = 1;
@@ -76,6 +93,10 @@ public class Example
         {
             System.err.println("error: " + e.getMessage());
         }
+        catch (InterruptedException e)
+        {
+            System.err.println("error: interrupted");
+        }
 
     }
 }
@@ -0,0 +1,106 @@
+package com.ericbarnhill.niftijio;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Commits the measurements of reads and writes to JDK Flight Recorder.
+ * <p/>
+ * The library is compiled for Java 8, which has no jdk.jfr module, so the event type is defined at
+ * run time with jdk.jfr.EventFactory through reflection, and nothing is loaded until it is enabled.
+ * An event is begun when an operation starts and ended when it completes, so that its start time
+ * and duration are those of the operation.
+ */
+final class FlightRecorder
+{
+    private final Object factory;
+    private final Method newEvent, set, begin, end, commit;
+
+    private FlightRecorder(Object factory, Method newEvent, Method set, Method begin, Method end, Method commit)
+    {
+        this.factory = factory;
+        this.newEvent = newEvent;
+        this.set = set;
+        this.begin = begin;
+        this.end = end;
+        this.commit = commit;
+    }
+
+    /** Define the event type, or return null if the runtime does not include Flight Recorder. */
+    static FlightRecorder create()
+    {
+        try
+        {
+            Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+            Constructor<?> annotation = element.getConstructor(Class.class, Object.class);
+            Constructor<?> value = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+            Object bytes = annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES");
+            Object nanos = annotation.newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS");
+
+            List<Object> type = Arrays.asList(
+                    annotation.newInstance(Class.forName("jdk.jfr.Name"), "com.ericbarnhill.niftijio.IO"),
+                    annotation.newInstance(Class.forName("jdk.jfr.Label"), "NIfTI I/O"),
+                    annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"niftijio"}),
+                    annotation.newInstance(Class.forName("jdk.jfr.Description"), "A read or write of a NIfTI header or volume"));
+
+            List<Object> fields = new ArrayList<Object>();
+            fields.add(value.newInstance(String.class, "kind", Collections.emptyList()));
+            fields.add(value.newInstance(String.class, "filename", Collections.emptyList()));
+            for (String name : new String[] {"fileBytes", "dataBytes", "allocatedBytes"})
+                fields.add(value.newInstance(long.class, name, Collections.singletonList(bytes)));
+            for (String name : new String[] {"ioTime", "inflateTime", "decodeTime", "encodeTime", "deflateTime", "allocateTime", "totalTime"})
+                fields.add(value.newInstance(long.class, name, Collections.singletonList(nanos)));
+
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            return new FlightRecorder(factory.getMethod("create", List.class, List.class).invoke(null, type, fields),
+                    factory.getMethod("newEvent"), event.getMethod("set", int.class, Object.class),
+                    event.getMethod("begin"), event.getMethod("end"), event.getMethod("commit"));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return null;
+        }
+        catch (LinkageError e)
+        {
+            return null;
+        }
+    }
+
+    /** Create an event and start its timing, when an operation starts. */
+    Object begin()
+    {
+        try
+        {
+            Object event = newEvent.invoke(factory);
+            begin.invoke(event);
+            return event;
+        }
+        catch (ReflectiveOperationException x)
+        {
+            throw new IllegalStateException("failed to begin a flight recorder event", x);
+        }
+    }
+
+    /** Fill an event begun by {@link #begin()} with the measurements of its operation, and commit it. */
+    void commit(Object event, NiftiEvent e)
+    {
+        try
+        {
+            Object[] values = {e.kind.name(), e.filename, e.fileBytes, e.dataBytes, e.allocatedBytes, e.ioNanos,
+                    e.inflateNanos, e.decodeNanos, e.encodeNanos, e.deflateNanos, e.allocateNanos, e.totalNanos};
+            for (int i = 0; i < values.length; i++)
+                set.invoke(event, i, values[i]);
+            end.invoke(event);
+            commit.invoke(event);
+        }
+        catch (ReflectiveOperationException x)
+        {
+            throw new IllegalStateException("failed to commit a flight recorder event", x);
+        }
+    }
+}
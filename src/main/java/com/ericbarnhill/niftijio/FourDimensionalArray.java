@@ -1,36 +1,75 @@
 package com.ericbarnhill.niftijio;
 
+import java.io.Closeable;
+import java.nio.ByteOrder;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoublePredicate;
+import java.util.function.DoubleUnaryOperator;
+
 /* Four-dimensional array implementation that avoids using java's multi-dimensional arrays.
         * <p/>
         * For very large images, java's multi-dimensional arrays cause too much overhead and eventually
         * result in either heap or garbage collection issues. This implementation uses one single large array
         * while providing a 4D access interface.
+        * <p/>
+        * Indices are computed with longs and the storage is split into fixed-size pages, so the total
+        * number of voxels may exceed the range of an int.
+        * <p/>
+        * The voxels live in a {@link VoxelStorage} of the datatype given at construction, and the double
+        * valued get and set methods convert to and from it.  The typed accessors read and write the stored
+        * primitive directly and fail if the storage holds a different type.  An optional linear scaling,
+        * matching scl_slope and scl_inter of the header, is applied by the double valued methods only,
+        * so a scaled file can keep its stored integers at their own size.
+        * <p/>
+        * Arrays created with {@link #allocateDirect} keep their voxels outside of the heap, so they add
+        * nothing to the work of the garbage collector, and {@link #close()} frees that memory at once.
         *
         * Method names should be self-explanatory.
         * @author Ghazi Bouabene, University of Basel, Switzerland
         *
         *
  */
-public class FourDimensionalArray {
+public class FourDimensionalArray implements Closeable {
 
-    private double[] data;
+    private VoxelStorage data;
     private int nx, ny, nz, dim;
+    private boolean scaled = false;
+    private double slope = 1, inter = 0;
 
     public FourDimensionalArray(int nx, int ny, int nz, int dim) {
+        this(nx, ny, nz, dim, NiftiHeader.NIFTI_TYPE_FLOAT64);
+    }
+
+    public FourDimensionalArray(int nx, int ny, int nz, int dim, short datatype) {
         this.nx = nx;
         this.ny = ny;
         this.nz = nz;
         this.dim = dim;
-        this.data = new double[nx * ny * nz * dim];
+        this.data = VoxelStorage.create(datatype, (long) nx * ny * nz * dim);
     }
 
-    public FourDimensionalArray(double[][][][] array) {
-        this.nx = array.length;
-        this.ny = array[0].length;
-        this.nz = array[0][0].length;
-        this.dim = array[0][0][0].length;
+    public FourDimensionalArray(int nx, int ny, int nz, int dim, VoxelStorage storage) {
+        if (storage.size() != (long) nx * ny * nz * dim)
+            throw new IllegalArgumentException("storage holds " + storage.size() + " voxels, expected " + ((long) nx * ny * nz * dim));
+
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.dim = dim;
+        this.data = storage;
+    }
+
+    /** Create an array of zeros whose voxels are stored outside of the heap in the native byte order.
+     *
+     * The memory is freed by {@link #close()}, or when the array is collected if it is never closed.
+     */
+    public static FourDimensionalArray allocateDirect(int nx, int ny, int nz, int dim, short datatype) {
+        long size = (long) nx * ny * nz * dim;
+        return new FourDimensionalArray(nx, ny, nz, dim, BufferStorage.allocateDirect(datatype, size, ByteOrder.nativeOrder()));
+    }
 
-        this.data = new double[nx * ny * nz * dim];
+    public FourDimensionalArray(double[][][][] array) {
+        this(array.length, array[0].length, array[0][0].length, array[0][0][0].length);
 
         for (int d = 0; d < dim; d++)
             for (int k = 0; k < nz; k++)
@@ -40,16 +79,100 @@ public class FourDimensionalArray {
                     }
     }
 
+    private long index(int x, int y, int z, int d) {
+        return ((((long) d * nz + z) * ny + y) * nx) + x;
+    }
+
     public double get(int x, int y, int z, int d) {
-        int idx = d * (nx * ny * nz) + z * (nx * ny) + y * nx + x;
-        return data[idx];
+        double v = data.get(index(x, y, z, d));
+        return scaled ? v * slope + inter : v;
     }
 
     public void set(int x, int y, int z, int d, double val) {
-        int idx = d * (nx * ny * nz) + z * (nx * ny) + y * nx + x;
-        data[idx] = val;
+        data.set(index(x, y, z, d), scaled ? (val - inter) / slope : val);
+    }
+
+    /** Scale the stored values by slope and shift them by inter when they are accessed as doubles.
+     *
+     * A zero slope disables the scaling, as it does for scl_slope in the NIFTI header.
+     */
+    public void setScaling(double slope, double inter) {
+        this.scaled = slope != 0 && (slope != 1 || inter != 0);
+        this.slope = scaled ? slope : 1;
+        this.inter = scaled ? inter : 0;
     }
 
+    /** Copy the values of the row at y, z and d into dst, scaling the whole row at once. */
+    public void getRow(int y, int z, int d, double[] dst) {
+        data.get(index(0, y, z, d), dst, 0, nx);
+        if (scaled)
+            for (int i = 0; i < nx; i++)
+                dst[i] = dst[i] * slope + inter;
+    }
+
+    /** Set the values of the row at y, z and d from src, removing the scaling from the whole row at once. */
+    public void setRow(int y, int z, int d, double[] src) {
+        if (scaled) {
+            double[] raw = new double[nx];
+            for (int i = 0; i < nx; i++)
+                raw[i] = (src[i] - inter) / slope;
+            src = raw;
+        }
+        data.set(index(0, y, z, d), src, 0, nx);
+    }
+
+    /** Replace every value by op applied to it, in parallel on the common fork/join pool.
+     *
+     * The values are those of {@link #get}, with the scaling applied, and op must not depend on the
+     * order in which it is called.
+     */
+    public void map(DoubleUnaryOperator op) {
+        VoxelTasks.map(this, op);
+    }
+
+    /** Replace every value by op applied to it and the value at the same voxel of other, in parallel.
+     *
+     * @throws IllegalArgumentException if the arrays have different sizes
+     */
+    public void combine(FourDimensionalArray other, DoubleBinaryOperator op) {
+        VoxelTasks.combine(this, other, op);
+    }
+
+    /** The sum of all values, computed in parallel. */
+    public double sum() {
+        return VoxelTasks.reduce(this, 0, (a, b) -> a + b);
+    }
+
+    /** The smallest value, NaN if any value is NaN, or positive infinity if there are none. */
+    public double min() {
+        return VoxelTasks.reduce(this, Double.POSITIVE_INFINITY, Math::min);
+    }
+
+    /** The largest value, NaN if any value is NaN, or negative infinity if there are none. */
+    public double max() {
+        return VoxelTasks.reduce(this, Double.NEGATIVE_INFINITY, Math::max);
+    }
+
+    /** The number of values that match a predicate, counted in parallel. */
+    public long count(DoublePredicate predicate) {
+        return VoxelTasks.count(this, predicate);
+    }
+
+    public boolean isScaled() {return scaled;}
+    public double slope() {return slope;}
+    public double inter() {return inter;}
+
+    public byte getByte(int x, int y, int z, int d) {return data.getByte(index(x, y, z, d));}
+    public void setByte(int x, int y, int z, int d, byte val) {data.setByte(index(x, y, z, d), val);}
+    public short getShort(int x, int y, int z, int d) {return data.getShort(index(x, y, z, d));}
+    public void setShort(int x, int y, int z, int d, short val) {data.setShort(index(x, y, z, d), val);}
+    public int getInt(int x, int y, int z, int d) {return data.getInt(index(x, y, z, d));}
+    public void setInt(int x, int y, int z, int d, int val) {data.setInt(index(x, y, z, d), val);}
+    public float getFloat(int x, int y, int z, int d) {return data.getFloat(index(x, y, z, d));}
+    public void setFloat(int x, int y, int z, int d, float val) {data.setFloat(index(x, y, z, d), val);}
+    public double getDouble(int x, int y, int z, int d) {return data.getDouble(index(x, y, z, d));}
+    public void setDouble(int x, int y, int z, int d, double val) {data.setDouble(index(x, y, z, d), val);}
+
     public double[][][][] toArray() {
         double[][][][] array = new double[nx][ny][nz][dim];
         for (int d = 0; d < dim; d++)
@@ -65,4 +188,9 @@ public class FourDimensionalArray {
     public int sizeY() {return ny;}
     public int sizeZ() {return nz;}
     public int dimension() {return dim;}
+    public short datatype() {return data.datatype();}
+    public VoxelStorage storage() {return data;}
+
+    /** Release the memory of voxels stored outside of the heap, after which the array must not be used. */
+    public void close() {data.close();}
 }
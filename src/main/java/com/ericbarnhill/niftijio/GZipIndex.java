@@ -0,0 +1,777 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Random access index of a gzip file, in the manner of the zran example of zlib.
+ * <p/>
+ * The index records checkpoints roughly every {@link #DEFAULT_SPAN} bytes of uncompressed data, each
+ * holding a position in the compressed file and the 32 KB of data preceding it.  Inflation can then
+ * start at the nearest checkpoint before any position instead of at the beginning of the file.
+ * Checkpoints are placed at deflate blocks that start on a byte boundary, so that they can be resumed
+ * with {@link Inflater}; files written by {@link ParallelGZIPOutputStream} have one every block.
+ * <p/>
+ * The index is kept next to the gzip file with the suffix {@link #SUFFIX}, and is rebuilt when the
+ * size or modification time of the gzip file changes.
+ */
+public class GZipIndex
+{
+    /** The default distance between checkpoints, in bytes of uncompressed data. */
+    public static final long DEFAULT_SPAN = 1L << 22;
+
+    /** The suffix of an index file, appended to the name of the gzip file. */
+    public static final String SUFFIX = ".gzidx";
+
+    private static final int MAGIC = 0x4e475a49;
+    private static final int VERSION = 1;
+
+    /** The size of the deflate window. */
+    private static final int WINDOW_SIZE = 1 << 15;
+
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int FHCRC = 2;
+
+    /** A point at which inflation can start. */
+    private static final class Checkpoint
+    {
+        /** The position of a deflate block in the compressed file. */
+        final long in;
+        /** The position of the block in the uncompressed data. */
+        final long out;
+        /** The uncompressed data preceding the block within its gzip member, at most 32 KB. */
+        final byte[] window;
+
+        Checkpoint(long in, long out, byte[] window)
+        {
+            this.in = in;
+            this.out = out;
+            this.window = window;
+        }
+    }
+
+    private final String filename;
+    private final long length;
+    private final long modified;
+    private final long span;
+    private final long size;
+    private final Checkpoint[] checkpoints;
+
+    private GZipIndex(String filename, long length, long modified, long span, long size, Checkpoint[] checkpoints)
+    {
+        this.filename = filename;
+        this.length = length;
+        this.modified = modified;
+        this.span = span;
+        this.size = size;
+        this.checkpoints = checkpoints;
+    }
+
+    /** Load the index of a gzip file, building and saving it first if there is no valid one.
+     *
+     * @param filename the name of the gzip file
+     * @return the index
+     * @throws IOException
+     */
+    public static GZipIndex open(String filename) throws IOException
+    {
+        GZipIndex index = load(filename);
+        if (index == null)
+        {
+            index = build(filename, DEFAULT_SPAN);
+            try
+            {
+                index.save();
+            }
+            catch (IOException e)
+            {
+                // the index still serves this process if the directory is read-only
+                new File(filename + SUFFIX).delete();
+            }
+        }
+        return index;
+    }
+
+    /** Load the index of a gzip file.
+     *
+     * @param filename the name of the gzip file
+     * @return the index, or null if there is no index file or it does not match the gzip file or is damaged
+     * @throws IOException if the index file cannot be opened
+     */
+    public static GZipIndex load(String filename) throws IOException
+    {
+        File gz = new File(filename);
+        File file = new File(filename + SUFFIX);
+        if (!file.isFile())
+            return null;
+
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(new FileInputStream(file))));
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+
+            long length = in.readLong();
+            long modified = in.readLong();
+            if (length != gz.length() || modified != gz.lastModified())
+                return null;
+
+            long span = in.readLong();
+            long size = in.readLong();
+            int count = in.readInt();
+            // every checkpoint starts at a distinct byte of the compressed file
+            if (span <= 0 || size < 0 || count < 0 || count > length)
+                return null;
+
+            List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+            for (int i = 0; i < count; i++)
+            {
+                long cin = in.readLong();
+                long cout = in.readLong();
+                int n = in.readInt();
+                if (cin < 0 || cin > length || cout < 0 || cout > size || n < 0 || n > WINDOW_SIZE)
+                    return null;
+                byte[] window = new byte[n];
+                in.readFully(window);
+                checkpoints.add(new Checkpoint(cin, cout, window));
+            }
+
+            return new GZipIndex(filename, length, modified, span, size, checkpoints.toArray(new Checkpoint[count]));
+        }
+        catch (IOException e)
+        {
+            // a truncated or corrupt index is rebuilt like a missing one
+            return null;
+        }
+        catch (RuntimeException e)
+        {
+            return null;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /** Build the index of a gzip file by inflating it once.
+     *
+     * @param filename the name of the gzip file
+     * @param span the least distance between checkpoints, in bytes of uncompressed data
+     * @return the index, which is not saved
+     * @throws IOException
+     */
+    public static GZipIndex build(String filename, long span) throws IOException
+    {
+        if (span <= 0)
+            throw new IllegalArgumentException("invalid checkpoint span: " + span);
+
+        File gz = new File(filename);
+        long length = gz.length();
+        long modified = gz.lastModified();
+
+        InputStream in = new FileInputStream(gz);
+        try
+        {
+            Scanner scanner = new Scanner(in, span);
+            scanner.scan();
+            return new GZipIndex(filename, length, modified, span, scanner.total,
+                    scanner.checkpoints.toArray(new Checkpoint[scanner.checkpoints.size()]));
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /** Write the index next to the gzip file. */
+    public void save() throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(filename + SUFFIX))));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.writeLong(span);
+            out.writeLong(size);
+            out.writeInt(checkpoints.length);
+            for (Checkpoint c : checkpoints)
+            {
+                out.writeLong(c.in);
+                out.writeLong(c.out);
+                out.writeInt(c.window.length);
+                out.write(c.window);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /** The number of checkpoints. */
+    public int checkpoints()
+    {
+        return checkpoints.length;
+    }
+
+    /** The size of the uncompressed data. */
+    public long size()
+    {
+        return size;
+    }
+
+    /** The uncompressed position of the last checkpoint at or before a position. */
+    long checkpoint(long position)
+    {
+        return checkpoints[find(position)].out;
+    }
+
+    private int find(long position)
+    {
+        int lo = 0, hi = checkpoints.length - 1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi + 1) >>> 1;
+            if (checkpoints[mid].out <= position)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /** Open the uncompressed data at a position, inflating from the nearest checkpoint.
+     *
+     * @param position the position in the uncompressed data
+     * @return a stream of the uncompressed data from the position on
+     * @throws IOException
+     */
+    public InputStream open(long position) throws IOException
+    {
+        if (position < 0 || position > size)
+            throw new IllegalArgumentException("position " + position + " outside of " + size + " bytes");
+
+        Checkpoint c = checkpoints[find(position)];
+        InputStream is = new Reader(c);
+        try
+        {
+            VoxelCodec.skipFully(is, position - c.out);
+            return is;
+        }
+        catch (IOException e)
+        {
+            is.close();
+            throw e;
+        }
+    }
+
+    /** Inflates the gzip file from a checkpoint on, across member boundaries. */
+    private final class Reader extends InputStream
+    {
+        private final RandomAccessFile file;
+        private final byte[] input = new byte[1 << 16];
+        private final Inflater inflater = new Inflater(true);
+        private int pos = 0;
+        private int lim = 0;
+        private boolean eof = false;
+
+        Reader(Checkpoint c) throws IOException
+        {
+            file = new RandomAccessFile(filename, "r");
+            file.seek(c.in);
+            if (c.window.length > 0)
+                inflater.setDictionary(c.window);
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+
+            try
+            {
+                while (!eof)
+                {
+                    if (inflater.finished())
+                    {
+                        pos = lim - inflater.getRemaining();
+                        next();
+                        continue;
+                    }
+
+                    if (inflater.needsInput())
+                    {
+                        if (pos == lim && !fill())
+                            throw new EOFException("unexpected end of gzip file");
+                        inflater.setInput(input, pos, lim - pos);
+                        pos = lim;
+                    }
+
+                    int n = inflater.inflate(b, off, len);
+                    if (n > 0)
+                        return n;
+                    if (inflater.needsDictionary())
+                        throw new IOException("gzip data needs a preset dictionary");
+                }
+                return -1;
+            }
+            catch (DataFormatException e)
+            {
+                throw new IOException("corrupt gzip data", e);
+            }
+        }
+
+        public long skip(long n) throws IOException
+        {
+            byte[] b = new byte[1 << 16];
+            long done = 0;
+            while (done < n)
+            {
+                int r = read(b, 0, (int) Math.min(b.length, n - done));
+                if (r < 0)
+                    break;
+                done += r;
+            }
+            return done;
+        }
+
+        /** Skip the trailer of the finished member and the header of the next one, if any. */
+        private void next() throws IOException
+        {
+            for (int i = 0; i < 8; i++)
+                if (octet() < 0)
+                    throw new EOFException("truncated gzip trailer");
+
+            int id1 = octet();
+            if (id1 < 0)
+            {
+                eof = true;
+                return;
+            }
+
+            if (id1 != 0x1f || octet() != 0x8b || octet() != 8)
+                throw new IOException("not a gzip member");
+
+            int flags = octet();
+            for (int i = 0; i < 6; i++)
+                octet();
+            if ((flags & FEXTRA) != 0)
+            {
+                int xlen = octet() | (octet() << 8);
+                for (int i = 0; i < xlen; i++)
+                    octet();
+            }
+            if ((flags & FNAME) != 0)
+                while (octet() > 0)
+                    ;
+            if ((flags & FCOMMENT) != 0)
+                while (octet() > 0)
+                    ;
+            if ((flags & FHCRC) != 0)
+            {
+                octet();
+                octet();
+            }
+
+            inflater.reset();
+        }
+
+        private int octet() throws IOException
+        {
+            if (pos == lim && !fill())
+                return -1;
+            return input[pos++] & 0xff;
+        }
+
+        private boolean fill() throws IOException
+        {
+            int n = file.read(input, 0, input.length);
+            pos = 0;
+            lim = Math.max(n, 0);
+            return n > 0;
+        }
+
+        public void close() throws IOException
+        {
+            inflater.end();
+            file.close();
+        }
+    }
+
+    /**
+     * Inflater that records checkpoints.
+     * <p/>
+     * {@link Inflater} does not report the bit position of deflate blocks, so the index is built by
+     * decoding the deflate format directly.
+     */
+    private static final class Scanner
+    {
+        private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+        private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+        private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+        private static final int[] DISTANCE_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+        private static final int[] ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+        private static final Huffman FIXED_LITERALS;
+        private static final Huffman FIXED_DISTANCES;
+
+        static
+        {
+            int[] lengths = new int[288 + 30];
+            for (int i = 0; i < 288; i++)
+                lengths[i] = i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8;
+            for (int i = 288; i < lengths.length; i++)
+                lengths[i] = 5;
+            FIXED_LITERALS = Huffman.build(lengths, 0, 288);
+            FIXED_DISTANCES = Huffman.build(lengths, 288, 30);
+        }
+
+        /** A canonical Huffman code, decoded with a table indexed by the next bits of the input. */
+        private static final class Huffman
+        {
+            /** The symbol shifted left by four bits, or'ed with the code length, or zero for no code. */
+            final int[] table;
+            final int bits;
+
+            private Huffman(int[] table, int bits)
+            {
+                this.table = table;
+                this.bits = bits;
+            }
+
+            static Huffman build(int[] lengths, int off, int n)
+            {
+                int[] counts = new int[16];
+                int max = 0;
+                for (int i = 0; i < n; i++)
+                {
+                    counts[lengths[off + i]]++;
+                    max = Math.max(max, lengths[off + i]);
+                }
+                counts[0] = 0;
+
+                int left = 1;
+                int[] next = new int[16];
+                for (int len = 1; len < 16; len++)
+                {
+                    left = (left << 1) - counts[len];
+                    if (left < 0)
+                        return null;
+                    next[len] = (next[len - 1] + counts[len - 1]) << 1;
+                }
+
+                int[] table = new int[1 << max];
+                for (int i = 0; i < n; i++)
+                {
+                    int len = lengths[off + i];
+                    if (len == 0)
+                        continue;
+                    int code = Integer.reverse(next[len]++) >>> (32 - len);
+                    for (int j = code; j < table.length; j += 1 << len)
+                        table[j] = (i << 4) | len;
+                }
+                return new Huffman(table, max);
+            }
+        }
+
+        private final InputStream in;
+        private final long span;
+        private final byte[] input = new byte[1 << 16];
+        private int pos = 0;
+        private int lim = 0;
+        /** The position in the file of the start of the input buffer. */
+        private long consumed = 0;
+        private long bitbuf = 0;
+        private int bitcount = 0;
+
+        private final byte[] window = new byte[WINDOW_SIZE];
+        private long total = 0;
+        private long member = 0;
+        private long last;
+        final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+
+        Scanner(InputStream in, long span)
+        {
+            this.in = in;
+            this.span = span;
+            this.last = -span;
+        }
+
+        void scan() throws IOException
+        {
+            if (!member())
+                throw new IOException("empty gzip file");
+            while (member())
+                ;
+        }
+
+        /** Inflate one gzip member, or return false at the end of the file. */
+        private boolean member() throws IOException
+        {
+            if (!fill(8))
+                return false;
+
+            if (bits(8) != 0x1f || bits(8) != 0x8b || bits(8) != 8)
+                throw new IOException("not a gzip file");
+
+            int flags = bits(8);
+            bits(16);
+            bits(16);
+            bits(16);
+            if ((flags & FEXTRA) != 0)
+            {
+                int xlen = bits(16);
+                for (int i = 0; i < xlen; i++)
+                    bits(8);
+            }
+            if ((flags & FNAME) != 0)
+                while (bits(8) != 0)
+                    ;
+            if ((flags & FCOMMENT) != 0)
+                while (bits(8) != 0)
+                    ;
+            if ((flags & FHCRC) != 0)
+                bits(16);
+
+            member = total;
+            boolean fin;
+            do
+            {
+                if ((bitcount & 7) == 0 && total - last >= span)
+                    checkpoint();
+
+                fin = bits(1) == 1;
+                switch (bits(2))
+                {
+                    case 0:
+                        stored();
+                        break;
+                    case 1:
+                        codes(FIXED_LITERALS, FIXED_DISTANCES);
+                        break;
+                    case 2:
+                        dynamic();
+                        break;
+                    default:
+                        throw new IOException("invalid deflate block type");
+                }
+            }
+            while (!fin);
+
+            bitbuf >>>= bitcount & 7;
+            bitcount -= bitcount & 7;
+            bits(16);
+            bits(16);
+            long isize = bits(16) | ((long) bits(16) << 16);
+            if (isize != ((total - member) & 0xffffffffL))
+                throw new IOException("gzip member size mismatch");
+
+            return true;
+        }
+
+        private void checkpoint()
+        {
+            int n = (int) Math.min(WINDOW_SIZE, total - member);
+            byte[] copy = new byte[n];
+            int start = (int) (total - n) & (WINDOW_SIZE - 1);
+            int first = Math.min(n, WINDOW_SIZE - start);
+            System.arraycopy(window, start, copy, 0, first);
+            System.arraycopy(window, 0, copy, first, n - first);
+
+            checkpoints.add(new Checkpoint(consumed + pos - (bitcount >> 3), total, copy));
+            last = total;
+        }
+
+        private void stored() throws IOException
+        {
+            bitbuf >>>= bitcount & 7;
+            bitcount -= bitcount & 7;
+            int len = bits(16);
+            if ((bits(16) ^ 0xffff) != len)
+                throw new IOException("invalid stored block length");
+
+            while (len > 0 && bitcount > 0)
+            {
+                put(bits(8));
+                len--;
+            }
+            while (len > 0)
+            {
+                if (pos == lim && !refill())
+                    throw new EOFException("unexpected end of gzip file");
+                int n = Math.min(len, lim - pos);
+                for (int i = 0; i < n; i++)
+                    put(input[pos + i]);
+                pos += n;
+                len -= n;
+            }
+        }
+
+        private void dynamic() throws IOException
+        {
+            int nlen = bits(5) + 257;
+            int ndist = bits(5) + 1;
+            int ncode = bits(4) + 4;
+            if (nlen > 286 || ndist > 30)
+                throw new IOException("invalid deflate code counts");
+
+            int[] lengths = new int[19];
+            for (int i = 0; i < ncode; i++)
+                lengths[ORDER[i]] = bits(3);
+            Huffman lencode = check(Huffman.build(lengths, 0, 19));
+
+            lengths = new int[nlen + ndist];
+            for (int i = 0; i < lengths.length;)
+            {
+                int sym = decode(lencode);
+                if (sym < 16)
+                {
+                    lengths[i++] = sym;
+                    continue;
+                }
+
+                int value = 0;
+                int repeat;
+                if (sym == 16)
+                {
+                    if (i == 0)
+                        throw new IOException("invalid deflate code length repeat");
+                    value = lengths[i - 1];
+                    repeat = 3 + bits(2);
+                }
+                else if (sym == 17)
+                    repeat = 3 + bits(3);
+                else
+                    repeat = 11 + bits(7);
+
+                if (i + repeat > lengths.length)
+                    throw new IOException("too many deflate code lengths");
+                while (repeat-- > 0)
+                    lengths[i++] = value;
+            }
+
+            if (lengths[256] == 0)
+                throw new IOException("deflate block without end code");
+
+            codes(check(Huffman.build(lengths, 0, nlen)), check(Huffman.build(lengths, nlen, ndist)));
+        }
+
+        private static Huffman check(Huffman code) throws IOException
+        {
+            if (code == null)
+                throw new IOException("invalid deflate code lengths");
+            return code;
+        }
+
+        private void codes(Huffman literals, Huffman distances) throws IOException
+        {
+            final int mask = WINDOW_SIZE - 1;
+            while (true)
+            {
+                int sym = decode(literals);
+                if (sym < 256)
+                {
+                    put(sym);
+                }
+                else if (sym == 256)
+                {
+                    return;
+                }
+                else
+                {
+                    sym -= 257;
+                    if (sym >= 29)
+                        throw new IOException("invalid deflate length code");
+                    int len = LENGTH_BASE[sym] + bits(LENGTH_EXTRA[sym]);
+
+                    sym = decode(distances);
+                    if (sym >= 30)
+                        throw new IOException("invalid deflate distance code");
+                    int dist = DISTANCE_BASE[sym] + bits(DISTANCE_EXTRA[sym]);
+                    if (dist > total - member)
+                        throw new IOException("deflate distance too far back");
+
+                    for (int i = 0; i < len; i++)
+                    {
+                        window[(int) total & mask] = window[(int) (total - dist) & mask];
+                        total++;
+                    }
+                }
+            }
+        }
+
+        private void put(int b)
+        {
+            window[(int) total & (WINDOW_SIZE - 1)] = (byte) b;
+            total++;
+        }
+
+        private int decode(Huffman code) throws IOException
+        {
+            fill(code.bits);
+            int entry = code.table[(int) bitbuf & ((1 << code.bits) - 1)];
+            int len = entry & 15;
+            if (len == 0 || len > bitcount)
+                throw new IOException("invalid deflate code");
+            bitbuf >>>= len;
+            bitcount -= len;
+            return entry >>> 4;
+        }
+
+        private int bits(int n) throws IOException
+        {
+            if (!fill(n))
+                throw new EOFException("unexpected end of gzip file");
+            int v = (int) bitbuf & ((1 << n) - 1);
+            bitbuf >>>= n;
+            bitcount -= n;
+            return v;
+        }
+
+        /** Buffer at least n bits, or as many as remain in the file. */
+        private boolean fill(int n) throws IOException
+        {
+            while (bitcount < n)
+            {
+                if (pos == lim && !refill())
+                    return false;
+                bitbuf |= (long) (input[pos++] & 0xff) << bitcount;
+                bitcount += 8;
+            }
+            return true;
+        }
+
+        private boolean refill() throws IOException
+        {
+            consumed += lim;
+            pos = 0;
+            lim = Math.max(in.read(input, 0, input.length), 0);
+            return lim > 0;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The counters of one instrumented operation, filled by wrappers of its streams.
+ * <p/>
+ * The file streams count the bytes and time of the file itself, and the codec streams, which wrap
+ * the gzip streams, count the uncompressed bytes and the time spent in them and the file below.
+ */
+final class IoProbe
+{
+    final NiftiEvent.Kind kind;
+    final String filename;
+    final long start = System.nanoTime();
+    private final FlightRecorder recorder = NiftiInstrumentation.recorder();
+    private final Object recording = recorder != null ? recorder.begin() : null;
+
+    boolean compressed = false;
+    long fileBytes, ioNanos;
+    long dataBytes, codecNanos;
+    long workNanos;
+    long allocatedBytes, allocateNanos;
+
+    private IoProbe(NiftiEvent.Kind kind, String filename)
+    {
+        this.kind = kind;
+        this.filename = filename;
+    }
+
+    /** Start measuring an operation, or return null if there are no listeners. */
+    static IoProbe start(NiftiEvent.Kind kind, String filename)
+    {
+        return NiftiInstrumentation.enabled() ? new IoProbe(kind, filename) : null;
+    }
+
+    /** Publish the measurements of the completed operation. */
+    void finish()
+    {
+        NiftiEvent event = new NiftiEvent(this, System.nanoTime() - start);
+        NiftiInstrumentation.publish(event);
+        if (recording != null)
+            recorder.commit(recording, event);
+    }
+
+    InputStream file(InputStream is)
+    {
+        return new FilterInputStream(is)
+        {
+            public int read() throws IOException
+            {
+                long t = System.nanoTime();
+                int b = in.read();
+                ioNanos += System.nanoTime() - t;
+                if (b >= 0)
+                    fileBytes++;
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                long t = System.nanoTime();
+                int n = in.read(b, off, len);
+                ioNanos += System.nanoTime() - t;
+                if (n > 0)
+                    fileBytes += n;
+                return n;
+            }
+
+            public long skip(long n) throws IOException
+            {
+                long t = System.nanoTime();
+                long s = in.skip(n);
+                ioNanos += System.nanoTime() - t;
+                fileBytes += s;
+                return s;
+            }
+        };
+    }
+
+    InputStream inflated(InputStream is)
+    {
+        compressed = true;
+        return new FilterInputStream(is)
+        {
+            public int read() throws IOException
+            {
+                long t = System.nanoTime();
+                int b = in.read();
+                codecNanos += System.nanoTime() - t;
+                if (b >= 0)
+                    dataBytes++;
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                long t = System.nanoTime();
+                int n = in.read(b, off, len);
+                codecNanos += System.nanoTime() - t;
+                if (n > 0)
+                    dataBytes += n;
+                return n;
+            }
+
+            public long skip(long n) throws IOException
+            {
+                long t = System.nanoTime();
+                long s = in.skip(n);
+                codecNanos += System.nanoTime() - t;
+                dataBytes += s;
+                return s;
+            }
+        };
+    }
+
+    OutputStream file(OutputStream os)
+    {
+        return new FilterOutputStream(os)
+        {
+            public void write(int b) throws IOException
+            {
+                long t = System.nanoTime();
+                out.write(b);
+                ioNanos += System.nanoTime() - t;
+                fileBytes++;
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                long t = System.nanoTime();
+                out.write(b, off, len);
+                ioNanos += System.nanoTime() - t;
+                fileBytes += len;
+            }
+        };
+    }
+
+    WritableByteChannel file(WritableByteChannel channel)
+    {
+        return new Channel(channel, false);
+    }
+
+    WritableByteChannel deflated(WritableByteChannel channel)
+    {
+        compressed = true;
+        return new Channel(channel, true);
+    }
+
+    RegionReader.Source file(RegionReader.Source src)
+    {
+        return new Source(src, false);
+    }
+
+    RegionReader.Source inflated(RegionReader.Source src)
+    {
+        compressed = true;
+        return new Source(src, true);
+    }
+
+    private final class Source implements RegionReader.Source
+    {
+        private final RegionReader.Source src;
+        private final boolean codec;
+
+        Source(RegionReader.Source src, boolean codec)
+        {
+            this.src = src;
+            this.codec = codec;
+        }
+
+        public void read(long position, ByteBuffer buffer, int len) throws IOException
+        {
+            long t = System.nanoTime();
+            src.read(position, buffer, len);
+            t = System.nanoTime() - t;
+            if (codec)
+            {
+                codecNanos += t;
+                dataBytes += len;
+            }
+            else
+            {
+                ioNanos += t;
+                fileBytes += len;
+            }
+        }
+    }
+
+    private final class Channel implements WritableByteChannel
+    {
+        private final WritableByteChannel channel;
+        private final boolean codec;
+
+        Channel(WritableByteChannel channel, boolean codec)
+        {
+            this.channel = channel;
+            this.codec = codec;
+        }
+
+        public int write(ByteBuffer src) throws IOException
+        {
+            long t = System.nanoTime();
+            int n = channel.write(src);
+            t = System.nanoTime() - t;
+            if (codec)
+            {
+                codecNanos += t;
+                dataBytes += n;
+            }
+            else
+            {
+                ioNanos += t;
+                fileBytes += n;
+            }
+            return n;
+        }
+
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException
+        {
+            long t = System.nanoTime();
+            channel.close();
+            t = System.nanoTime() - t;
+            if (codec)
+                codecNanos += t;
+            else
+                ioNanos += t;
+        }
+    }
+}
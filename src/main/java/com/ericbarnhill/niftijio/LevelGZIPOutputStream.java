@@ -0,0 +1,23 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream that compresses with a given deflate level rather than the default one.
+ */
+final class LevelGZIPOutputStream extends GZIPOutputStream
+{
+    /**
+     * @param out the stream receiving the compressed data
+     * @param size the size of the output buffer
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @throws IOException
+     */
+    LevelGZIPOutputStream(OutputStream out, int size, int level) throws IOException
+    {
+        super(out, size);
+        def.setLevel(level);
+    }
+}
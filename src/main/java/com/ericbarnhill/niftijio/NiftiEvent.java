@@ -0,0 +1,75 @@
+package com.ericbarnhill.niftijio;
+
+/**
+ * The measurements of one read or write of a header or volume.
+ * <p/>
+ * Times are in nanoseconds of the calling thread.  Reading a compressed file interleaves the reads
+ * from the file, the inflating and the decoding, so the time in each is measured around the calls
+ * to the stream below it and the time spent in the streams below is subtracted, and likewise for
+ * writes.  With several threads compressing the output, the deflate time is the time the caller
+ * waited for them rather than the time they worked.  Asynchronous reads and writes measure the time
+ * spent on the executor between the operations on the file, and no I/O time.
+ */
+public class NiftiEvent
+{
+    public enum Kind
+    {
+        /** A header read by {@link NiftiHeader#read(String)} or {@link NiftiHeader#readAsync}. */
+        HEADER,
+        /** A volume read by {@link NiftiVolume#read}, {@link NiftiVolume#readAsync}, {@link NiftiVolume#readDirect},
+         *  {@link NiftiVolume#readRegion}, {@link NiftiVolume#readSparse} or a {@link NiftiFrameReader} opened on a
+         *  file, or mapped by {@link NiftiVolume#map}, which reads no voxels until they are accessed. */
+        READ,
+        /** A volume written by {@link NiftiVolume#write}, {@link NiftiVolume#writeAsync} or a {@link NiftiWriter}. */
+        WRITE
+    }
+
+    public final Kind kind;
+    /** The name of the file, or null for a stream without one. */
+    public final String filename;
+    /** The bytes read from or written to the file, compressed if it is, or zero for a region read through a {@link GZipIndex}. */
+    public final long fileBytes;
+    /** The bytes of the header and voxels before compression or after decompression. */
+    public final long dataBytes;
+    /** The time in reads from or writes to the file. */
+    public final long ioNanos;
+    public final long inflateNanos;
+    public final long decodeNanos;
+    public final long encodeNanos;
+    public final long deflateNanos;
+    /** The bytes of the voxel array allocated for a volume that was read. */
+    public final long allocatedBytes;
+    public final long allocateNanos;
+    /** The time of the whole operation. */
+    public final long totalNanos;
+
+    NiftiEvent(IoProbe probe, long total)
+    {
+        this.kind = probe.kind;
+        this.filename = probe.filename;
+        this.fileBytes = probe.fileBytes;
+        this.dataBytes = probe.compressed ? probe.dataBytes : probe.fileBytes;
+        this.ioNanos = probe.ioNanos;
+
+        // the codec streams include the time of the file below them, and the work includes both
+        long codec = probe.compressed ? Math.max(probe.codecNanos - probe.ioNanos, 0) : 0;
+        long work = Math.max(probe.workNanos - (probe.compressed ? probe.codecNanos : probe.ioNanos), 0);
+        boolean write = kind == Kind.WRITE;
+        this.inflateNanos = write ? 0 : codec;
+        this.deflateNanos = write ? codec : 0;
+        this.decodeNanos = write ? 0 : work;
+        this.encodeNanos = write ? work : 0;
+
+        this.allocatedBytes = probe.allocatedBytes;
+        this.allocateNanos = probe.allocateNanos;
+        this.totalNanos = total;
+    }
+
+    public String toString()
+    {
+        return kind + " " + filename + ": " + fileBytes + " file bytes, " + dataBytes + " data bytes, io " + ioNanos / 1000
+                + " us, inflate " + inflateNanos / 1000 + " us, decode " + decodeNanos / 1000 + " us, encode " + encodeNanos / 1000
+                + " us, deflate " + deflateNanos / 1000 + " us, allocated " + allocatedBytes + " bytes in " + allocateNanos / 1000
+                + " us, total " + totalNanos / 1000 + " us";
+    }
+}
@@ -0,0 +1,159 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming reader that decodes a four-dimensional NIFTI file one 3D frame at a time.
+ * <p/>
+ * Only a single frame is held in memory: every call to {@link #next()} decodes the following frame
+ * into the same {@link FourDimensionalArray}, so callers that need to keep a frame must copy it.
+ * Both plain and gzip compressed files are supported.
+ */
+public class NiftiFrameReader implements Iterator<FourDimensionalArray>, Closeable
+{
+    public final NiftiHeader header;
+
+    private final InputStream is;
+    private final FourDimensionalArray frame;
+    private final ByteBuffer buffer;
+    private final int frames;
+    private int index = 0;
+    private IoProbe probe;
+
+    private NiftiFrameReader(NiftiHeader hdr, InputStream is)
+    {
+        this.header = hdr;
+        this.is = is;
+
+        int[] dims = NiftiVolume.dimensions(hdr);
+        this.frames = dims[3];
+        this.frame = new FourDimensionalArray(dims[0], dims[1], dims[2], 1, VoxelStorage.storageType(hdr));
+        this.buffer = VoxelCodec.buffer(hdr);
+    }
+
+    /** Open a NIFTI file for reading frame by frame.
+     *
+     * A single event of the {@link NiftiInstrumentation} covers the frames read until the reader is closed.
+     *
+     * @param filename the name of the file to read
+     * @return a reader positioned before the first frame
+     * @throws IOException
+     */
+    public static NiftiFrameReader open(String filename) throws IOException
+    {
+        IoProbe probe = IoProbe.start(NiftiEvent.Kind.READ, filename);
+        InputStream fis = new FileInputStream(filename);
+        InputStream is = probe != null ? probe.file(fis) : fis;
+        try
+        {
+            if (filename.endsWith(".gz"))
+            {
+                is = ParallelGZIPInputStream.open(is, Runtime.getRuntime().availableProcessors());
+                if (probe != null)
+                    is = probe.inflated(is);
+            }
+        }
+        catch (IOException e)
+        {
+            fis.close();
+            throw e;
+        }
+
+        NiftiFrameReader reader = open(is, filename);
+        if (probe != null)
+            probe.allocatedBytes = reader.frame.storage().sizeInBytes();
+        reader.probe = probe;
+        return reader;
+    }
+
+    /** Read frames from a stream holding a complete NIFTI file.
+     *
+     * @param is an input stream pointing to the beginning of the NIFTI file, uncompressed. It is closed with the reader.
+     * @param filename the name of the original file, can be null
+     * @return a reader positioned before the first frame
+     * @throws IOException
+     */
+    public static NiftiFrameReader open(InputStream is, String filename) throws IOException
+    {
+        BufferedInputStream bis = new BufferedInputStream(is);
+        try
+        {
+            bis.mark(2048);
+            NiftiHeader hdr = NiftiHeader.read(bis, filename);
+            bis.reset();
+
+            VoxelCodec.check(hdr.datatype, "read");
+            VoxelCodec.skipFully(bis, hdr.getVoxOffset());
+            return new NiftiFrameReader(hdr, bis);
+        }
+        catch (IOException e)
+        {
+            bis.close();
+            throw e;
+        }
+    }
+
+    /** The number of frames in the file. */
+    public int frames()
+    {
+        return frames;
+    }
+
+    /** The index of the frame that the next call to {@link #next()} returns. */
+    public int index()
+    {
+        return index;
+    }
+
+    public boolean hasNext()
+    {
+        return index < frames;
+    }
+
+    /** Decode the next frame.
+     *
+     * @return a volume with a fourth dimension of one, reused by later calls
+     * @throws UncheckedIOException if the frame cannot be read
+     */
+    public FourDimensionalArray next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        long start = probe != null ? System.nanoTime() : 0;
+        try
+        {
+            VoxelCodec.decode(is, header, frame.storage(), buffer, true);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        if (probe != null)
+            probe.workNanos += System.nanoTime() - start;
+        index++;
+        return frame;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() throws IOException
+    {
+        is.close();
+        if (probe != null)
+            probe.finish();
+        probe = null;
+    }
+}
@@ -1,19 +1,21 @@
 package com.ericbarnhill.niftijio;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.GZIPInputStream;
 import java.util.Date;
 import java.util.List;
@@ -22,8 +24,16 @@ public class NiftiHeader
 {
     /* derived from http://niftilib.sourceforge.net/ */
     public static final int ANZ_HDR_SIZE = 348;
+    public static final int NII2_HDR_SIZE = 540;
     public static final int EXT_KEY_SIZE = 8;
     public static final String NII_MAGIC_STRING = "n+1";
+    public static final String NII2_MAGIC_STRING = "n+2";
+
+    /** The bytes that follow the magic string of a NIfTI-2 header, which reveal conversions of line endings. */
+    private static final byte[] NII2_SIGNATURE = {'\r', '\n', 032, '\n'};
+
+    /** The input buffer size used to inflate the header of a compressed file. */
+    private static final int PROBE_SIZE = 512;
 
     public static final short NIFTI_INTENT_NONE = 0;
     public static final short NIFTI_INTENT_CORREL = 2;
@@ -155,6 +165,12 @@ public class NiftiHeader
     public StringBuffer magic;
     public byte extension[];
 
+    /** The version of the format, 1 for NIfTI-1 and Analyze or 2 for NIfTI-2. */
+    public int version;
+    // the dimensions and offset of a NIfTI-2 header, which dim and vox_offset may not be able to hold
+    private long dims[];
+    private long offset;
+
     public NiftiHeader()
     {
         setDefaults();
@@ -174,11 +190,11 @@ public class NiftiHeader
         this.srow_z[2] = 1.0f;
         this.descrip = new StringBuffer("Created: " + new Date().toString());
         this.setDatatype(NIFTI_TYPE_FLOAT32);
-        this.dim[0] = (short) (dim > 1 ? 4 : 3);
-        this.dim[1] = (short) nx;
-        this.dim[2] = (short) ny;
-        this.dim[3] = (short) nz;
-        this.dim[4] = (short) (dim > 1 ? dim : 0);
+        this.setDim(0, dim > 1 ? 4 : 3);
+        this.setDim(1, nx);
+        this.setDim(2, ny);
+        this.setDim(3, nz);
+        this.setDim(4, dim > 1 ? dim : 0);
     }
 
     public void setDatatype(short code)
@@ -188,6 +204,75 @@ public class NiftiHeader
         return;
     }
 
+    /** The size along a dimension, or the number of dimensions for i = 0.
+     *
+     * This is dim[i] for NIfTI-1, and the 64-bit size of a NIfTI-2 header, which dim[i] only holds up to 32767.
+     */
+    public long getDim(int i)
+    {
+        return version == 2 ? dims[i] : dim[i];
+    }
+
+    /** Set the size along a dimension, switching to NIfTI-2 if it does not fit in dim[i]. */
+    public void setDim(int i, long n)
+    {
+        if (n > Short.MAX_VALUE && version != 2)
+            setVersion(2);
+        if (version == 2)
+            dims[i] = n;
+        dim[i] = (short) Math.min(n, Short.MAX_VALUE);
+    }
+
+    /** The position of the first voxel in the file. */
+    public long getVoxOffset()
+    {
+        return version == 2 ? offset : (long) vox_offset;
+    }
+
+    public void setVoxOffset(long offset)
+    {
+        this.offset = offset;
+        this.vox_offset = offset;
+    }
+
+    /** Convert the header to NIfTI-1 or NIfTI-2, moving the voxels after the larger or smaller header.
+     *
+     * @param version 1 or 2
+     * @throws IllegalStateException if a dimension is too large for NIfTI-1
+     */
+    public void setVersion(int version)
+    {
+        if (version == this.version)
+            return;
+
+        if (version == 2)
+        {
+            dims = new long[8];
+            for (int i = 0; i < 8; i++)
+                dims[i] = dim[i];
+            offset = Math.max((long) vox_offset, ANZ_HDR_SIZE + 4) + NII2_HDR_SIZE - ANZ_HDR_SIZE;
+            vox_offset = offset;
+            sizeof_hdr = NII2_HDR_SIZE;
+            magic = new StringBuffer(NII2_MAGIC_STRING);
+        }
+        else if (version == 1)
+        {
+            for (int i = 0; i < 8; i++)
+                if (dims[i] > Short.MAX_VALUE || dims[i] < Short.MIN_VALUE)
+                    throw new IllegalStateException("dimension " + i + " of " + dims[i] + " is too large for nifti-1");
+            for (int i = 0; i < 8; i++)
+                dim[i] = (short) dims[i];
+            vox_offset = Math.max(offset - NII2_HDR_SIZE + ANZ_HDR_SIZE, ANZ_HDR_SIZE + 4);
+            sizeof_hdr = ANZ_HDR_SIZE;
+            magic = new StringBuffer(NII_MAGIC_STRING);
+        }
+        else
+        {
+            throw new IllegalArgumentException("invalid nifti version " + version);
+        }
+        this.version = version;
+    }
+
     public String decodeIntent(short icode)
     {
         switch (icode)
@@ -417,6 +502,7 @@ public class NiftiHeader
     private void setDefaults()
     {
         little_endian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        version = 1;
         sizeof_hdr = ANZ_HDR_SIZE;
         data_type_string = new StringBuffer();
         for (int i = 0; i < 10; i++)
@@ -516,7 +602,7 @@ public class NiftiHeader
         Map<String,String> info = new HashMap<String,String>();
 
         info.put("size", String.valueOf(sizeof_hdr));
-        info.put("data_offset", String.valueOf(vox_offset));
+        info.put("data_offset", String.valueOf(getVoxOffset()));
         info.put("magic_string", String.valueOf(magic));
         info.put("datatype_code", String.valueOf(datatype));
         info.put("datatype_name", decodeDatatype(datatype));
@@ -525,7 +611,7 @@ public class NiftiHeader
         info.put("scaling_slope", String.valueOf(scl_slope));
 
         for (int i = 0; i <= dim[0]; i++)
-            info.put("dim" + i, String.valueOf(dim[i]));
+            info.put("dim" + i, String.valueOf(getDim(i)));
 
         for (int i = 0; i <= dim[0]; i++)
             info.put("space" + i, String.valueOf(pixdim[i]));
@@ -607,39 +693,63 @@ public class NiftiHeader
         return (b);
     }
 
-    private static boolean littleEndian(InputStream stream) throws IOException
+    static boolean littleEndian(ByteBuffer buffer)
     {
-        if (!stream.markSupported()) {
-            throw new IllegalArgumentException("stream does not support marks");
-        }
-        
-        stream.mark(42);
-        DataInputStream di = new DataInputStream(stream);
-
-        di.skipBytes(40);
-        short s = di.readShort();
+        if (nifti2(buffer))
+            return buffer.order(ByteOrder.LITTLE_ENDIAN).getInt(0) == NII2_HDR_SIZE;
 
-        stream.reset();
+        short s = buffer.order(ByteOrder.BIG_ENDIAN).getShort(40);
         return (s < 1) || (s > 7);
     }
     
     /** Read a NIFTI header from a file.
+     * 
+     * Only the header and its extensions are read, so a compressed file is inflated no further
+     * than the start of the voxel data.
      * 
      * @param filename the name of the file to read the header from
      * @return
      * @throws IOException 
      */
     public static NiftiHeader read(String filename) throws IOException {
+        IoProbe probe = IoProbe.start(NiftiEvent.Kind.HEADER, filename);
         InputStream is = new FileInputStream(filename);
-        if (filename.endsWith(".gz"))
-            is = new GZIPInputStream(is);
+        if (probe != null)
+            is = probe.file(is);
+        if (filename.endsWith(".gz")) {
+            is = new GZIPInputStream(is, PROBE_SIZE);
+            if (probe != null)
+                is = probe.inflated(is);
+        }
         try {
-            return read(is, filename);
+            NiftiHeader hdr = read(is, filename);
+            if (probe != null)
+                probe.finish();
+            return hdr;
         } finally {
             is.close();
         }
     }
 
+    /** Read a NIFTI header from a file without blocking the caller, on the common fork/join pool.
+     *
+     * @param filename the name of the file to read
+     * @return a future completed with the header, or exceptionally if it cannot be read
+     */
+    public static CompletableFuture<NiftiHeader> readAsync(String filename) {
+        return readAsync(filename, ForkJoinPool.commonPool());
+    }
+
+    /** Read a NIFTI header from a file without blocking the caller, reading only the start of the file.
+     *
+     * @param filename the name of the file to read
+     * @param executor the executor running the parsing and completing the future
+     * @return a future completed with the header, or exceptionally if it cannot be read
+     */
+    public static CompletableFuture<NiftiHeader> readAsync(String filename, ExecutorService executor) {
+        return AsyncReader.start(filename, executor, true).header;
+    }
+
     /** Read a NIFTI header from a binary data input stream. This method assumes that the content retrieved
      * from the input stream is already uncompressed.
      * 
@@ -649,39 +759,89 @@ public class NiftiHeader
      * @throws IOException 
      */
     public static NiftiHeader read(InputStream is, String filename) throws IOException {
-        BufferedInputStream bufferedStream = (!(is instanceof BufferedInputStream))
-                ? new BufferedInputStream(is)
-                : (BufferedInputStream)is;
-        
-        boolean le = littleEndian(bufferedStream);
+        byte[] bytes = new byte[NII2_HDR_SIZE + 4];
+        int n = readFully(is, bytes, 0, ANZ_HDR_SIZE + 4);
+        if (n < ANZ_HDR_SIZE)
+            throw new EOFException("truncated nifti header");
+
+        boolean nifti2 = nifti2(ByteBuffer.wrap(bytes, 0, n));
+        if (nifti2)
+        {
+            n += readFully(is, bytes, n, NII2_HDR_SIZE + 4 - n);
+            if (n < NII2_HDR_SIZE)
+                throw new EOFException("truncated nifti-2 header");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, n);
+        boolean le = littleEndian(buffer);
+        buffer.order(le ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
 
-        DataInput di = le ? new LEDataInputStream(bufferedStream)
-                : new DataInputStream(bufferedStream);
-        
         NiftiHeader ds = new NiftiHeader();
         ds.filename = filename;
         ds.little_endian = le;
-        
-        return readMain(di, ds);
+
+        if (nifti2)
+            readMain2(buffer, ds);
+        else
+            readMain(buffer, ds);
+        if (ds.extension[0] != (byte) 0)
+            readExtensions(is, buffer.order(), ds);
+
+        return ds;
     }
 
-    private static NiftiHeader readMain(DataInput di, NiftiHeader ds) throws IOException
+    /** Check whether the start of a header is a NIfTI-2 header, from its size in either byte order. */
+    static boolean nifti2(ByteBuffer buffer)
     {
-        ds.sizeof_hdr = di.readInt();
+        return buffer.order(ByteOrder.BIG_ENDIAN).getInt(0) == NII2_HDR_SIZE
+                || buffer.order(ByteOrder.LITTLE_ENDIAN).getInt(0) == NII2_HDR_SIZE;
+    }
 
-        byte[] bb = new byte[10];
-        di.readFully(bb, 0, 10);
-        ds.data_type_string = new StringBuffer(new String(bb));
+    /** The number of bytes up to the end of the extension flags, from the start of a header. */
+    static int headerLength(ByteBuffer buffer)
+    {
+        return (nifti2(buffer) ? NII2_HDR_SIZE : ANZ_HDR_SIZE) + 4;
+    }
+
+    /** The position of the first voxel, from a buffer holding at least {@link #headerLength} bytes of a header. */
+    static long voxOffset(ByteBuffer buffer)
+    {
+        boolean nifti2 = nifti2(buffer);
+        buffer.order(littleEndian(buffer) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        return nifti2 ? buffer.getLong(168) : (long) buffer.getFloat(108);
+    }
+
+    private static int readFully(InputStream is, byte[] b, int off, int len) throws IOException
+    {
+        int n = 0;
+        while (n < len)
+        {
+            int r = is.read(b, off + n, len - n);
+            if (r < 0)
+                break;
+            n += r;
+        }
+        return n;
+    }
+
+    private static String string(ByteBuffer buffer, int n)
+    {
+        byte[] bb = new byte[n];
+        buffer.get(bb);
+        return new String(bb);
+    }
 
-        bb = new byte[18];
-        di.readFully(bb, 0, 18);
-        ds.db_name = new StringBuffer(new String(bb));
-        ds.extents = di.readInt();
-        ds.session_error = di.readShort();
+    private static void readMain(ByteBuffer bb, NiftiHeader ds)
+    {
+        ds.sizeof_hdr = bb.getInt();
+        ds.data_type_string = new StringBuffer(string(bb, 10));
+        ds.db_name = new StringBuffer(string(bb, 18));
+        ds.extents = bb.getInt();
+        ds.session_error = bb.getShort();
         ds.regular = new StringBuffer();
-        ds.regular.append((char) (di.readUnsignedByte()));
+        ds.regular.append((char) (bb.get() & 0xff));
         ds.dim_info = new StringBuffer();
-        ds.dim_info.append((char) (di.readUnsignedByte()));
+        ds.dim_info.append((char) (bb.get() & 0xff));
 
         int fps_dim = (int) ds.dim_info.charAt(0);
         ds.freq_dim = (short) (fps_dim & 3);
@@ -689,104 +849,169 @@ public class NiftiHeader
         ds.slice_dim = (short) ((fps_dim >>> 4) & 3);
 
         for (int i = 0; i < 8; i++)
-            ds.dim[i] = di.readShort();
-        if (ds.dim[0] > 0)
-            ds.dim[1] = ds.dim[1];
-        if (ds.dim[0] > 1)
-            ds.dim[2] = ds.dim[2];
-        if (ds.dim[0] > 2)
-            ds.dim[3] = ds.dim[3];
-        if (ds.dim[0] > 3)
-            ds.dim[4] = ds.dim[4];
+            ds.dim[i] = bb.getShort();
 
         for (int i = 0; i < 3; i++)
-            ds.intent[i] = di.readFloat();
+            ds.intent[i] = bb.getFloat();
 
-        ds.intent_code = di.readShort();
-        ds.datatype = di.readShort();
-        ds.bitpix = di.readShort();
-        ds.slice_start = di.readShort();
+        ds.intent_code = bb.getShort();
+        ds.datatype = bb.getShort();
+        ds.bitpix = bb.getShort();
+        ds.slice_start = bb.getShort();
 
         for (int i = 0; i < 8; i++)
-            ds.pixdim[i] = di.readFloat();
+            ds.pixdim[i] = bb.getFloat();
 
         ds.qfac = (short) Math.floor((double) (ds.pixdim[0]));
-        ds.vox_offset = di.readFloat();
-        ds.scl_slope = di.readFloat();
-        ds.scl_inter = di.readFloat();
-        ds.slice_end = di.readShort();
-        ds.slice_code = (byte) di.readUnsignedByte();
+        ds.vox_offset = bb.getFloat();
+        ds.scl_slope = bb.getFloat();
+        ds.scl_inter = bb.getFloat();
+        ds.slice_end = bb.getShort();
+        ds.slice_code = bb.get();
 
-        ds.xyzt_units = (byte) di.readUnsignedByte();
+        ds.xyzt_units = bb.get();
 
         int unit_codes = (int) ds.xyzt_units;
         ds.xyz_unit_code = (short) (unit_codes & 007);
         ds.t_unit_code = (short) (unit_codes & 070);
 
-        ds.cal_max = di.readFloat();
-        ds.cal_min = di.readFloat();
-        ds.slice_duration = di.readFloat();
-        ds.toffset = di.readFloat();
-        ds.glmax = di.readInt();
-        ds.glmin = di.readInt();
-
-        bb = new byte[80];
-        di.readFully(bb, 0, 80);
-        ds.descrip = new StringBuffer(new String(bb));
+        ds.cal_max = bb.getFloat();
+        ds.cal_min = bb.getFloat();
+        ds.slice_duration = bb.getFloat();
+        ds.toffset = bb.getFloat();
+        ds.glmax = bb.getInt();
+        ds.glmin = bb.getInt();
 
-        bb = new byte[24];
-        di.readFully(bb, 0, 24);
-        ds.aux_file = new StringBuffer(new String(bb));
+        ds.descrip = new StringBuffer(string(bb, 80));
+        ds.aux_file = new StringBuffer(string(bb, 24));
 
-        ds.qform_code = di.readShort();
-        ds.sform_code = di.readShort();
+        ds.qform_code = bb.getShort();
+        ds.sform_code = bb.getShort();
 
         for (int i = 0; i < 3; i++)
-            ds.quatern[i] = di.readFloat();
+            ds.quatern[i] = bb.getFloat();
         for (int i = 0; i < 3; i++)
-            ds.qoffset[i] = di.readFloat();
+            ds.qoffset[i] = bb.getFloat();
 
         for (int i = 0; i < 4; i++)
-            ds.srow_x[i] = di.readFloat();
+            ds.srow_x[i] = bb.getFloat();
         for (int i = 0; i < 4; i++)
-            ds.srow_y[i] = di.readFloat();
+            ds.srow_y[i] = bb.getFloat();
         for (int i = 0; i < 4; i++)
-            ds.srow_z[i] = di.readFloat();
+            ds.srow_z[i] = bb.getFloat();
 
-        bb = new byte[16];
-        di.readFully(bb, 0, 16);
-        ds.intent_name = new StringBuffer(new String(bb));
+        ds.intent_name = new StringBuffer(string(bb, 16));
+        ds.magic = new StringBuffer(string(bb, 4));
 
-        bb = new byte[4];
-        di.readFully(bb, 0, 4);
-        ds.magic = new StringBuffer(new String(bb));
+        // an analyze header may end without the extension flags
+        if (bb.remaining() >= 4)
+            bb.get(ds.extension, 0, 4);
+    }
 
-        di.readFully(ds.extension, 0, 4);
+    /** Read a NIfTI-2 header, keeping its values in the fields of NIfTI-1 where they fit. */
+    private static void readMain2(ByteBuffer bb, NiftiHeader ds)
+    {
+        ds.version = 2;
+        ds.dims = new long[8];
 
-        if (ds.extension[0] != (byte) 0)
-        {
-            int start_addr = NiftiHeader.ANZ_HDR_SIZE + 4;
+        ds.sizeof_hdr = bb.getInt();
+        ds.magic = new StringBuffer(string(bb, 8));
+        ds.datatype = bb.getShort();
+        ds.bitpix = bb.getShort();
 
-            while (start_addr < (int) ds.vox_offset)
-            {
-                int[] size_code = new int[2];
-                size_code[0] = di.readInt();
-                size_code[1] = di.readInt();
-
-                int nb = size_code[0] - NiftiHeader.EXT_KEY_SIZE;
-                byte[] eblob = new byte[nb];
-                di.readFully(eblob, 0, nb);
-                ds.extension_blobs.add(eblob);
-                ds.extensions_list.add(size_code);
-                start_addr += (size_code[0]);
-
-                if (start_addr > (int) ds.vox_offset)
-                    throw new IOException("Error: Data  for extension " + (ds.extensions_list.size())
-                            + " appears to overrun start of image data.");
-            }
+        for (int i = 0; i < 8; i++)
+        {
+            ds.dims[i] = bb.getLong();
+            ds.dim[i] = (short) Math.max(Math.min(ds.dims[i], Short.MAX_VALUE), Short.MIN_VALUE);
         }
 
-        return ds;
+        for (int i = 0; i < 3; i++)
+            ds.intent[i] = (float) bb.getDouble();
+        for (int i = 0; i < 8; i++)
+            ds.pixdim[i] = (float) bb.getDouble();
+        ds.qfac = (short) Math.floor((double) (ds.pixdim[0]));
+
+        ds.offset = bb.getLong();
+        ds.vox_offset = ds.offset;
+        ds.scl_slope = (float) bb.getDouble();
+        ds.scl_inter = (float) bb.getDouble();
+        ds.cal_max = (float) bb.getDouble();
+        ds.cal_min = (float) bb.getDouble();
+        ds.slice_duration = (float) bb.getDouble();
+        ds.toffset = (float) bb.getDouble();
+        ds.slice_start = (short) bb.getLong();
+        ds.slice_end = (short) bb.getLong();
+
+        ds.descrip = new StringBuffer(string(bb, 80));
+        ds.aux_file = new StringBuffer(string(bb, 24));
+
+        ds.qform_code = (short) bb.getInt();
+        ds.sform_code = (short) bb.getInt();
+
+        for (int i = 0; i < 3; i++)
+            ds.quatern[i] = (float) bb.getDouble();
+        for (int i = 0; i < 3; i++)
+            ds.qoffset[i] = (float) bb.getDouble();
+
+        for (int i = 0; i < 4; i++)
+            ds.srow_x[i] = (float) bb.getDouble();
+        for (int i = 0; i < 4; i++)
+            ds.srow_y[i] = (float) bb.getDouble();
+        for (int i = 0; i < 4; i++)
+            ds.srow_z[i] = (float) bb.getDouble();
+
+        ds.slice_code = (byte) bb.getInt();
+        ds.xyzt_units = (byte) bb.getInt();
+        int unit_codes = (int) ds.xyzt_units;
+        ds.xyz_unit_code = (short) (unit_codes & 007);
+        ds.t_unit_code = (short) (unit_codes & 070);
+
+        ds.intent_code = (short) bb.getInt();
+        ds.intent_name = new StringBuffer(string(bb, 16));
+
+        ds.dim_info = new StringBuffer();
+        ds.dim_info.append((char) (bb.get() & 0xff));
+        int fps_dim = (int) ds.dim_info.charAt(0);
+        ds.freq_dim = (short) (fps_dim & 3);
+        ds.phase_dim = (short) ((fps_dim >>> 2) & 3);
+        ds.slice_dim = (short) ((fps_dim >>> 4) & 3);
+
+        // unused
+        VoxelCodec.position(bb, bb.position() + 15);
+
+        if (bb.remaining() >= 4)
+            bb.get(ds.extension, 0, 4);
+    }
+
+    private static void readExtensions(InputStream is, ByteOrder order, NiftiHeader ds) throws IOException
+    {
+        long start_addr = (ds.version == 2 ? NII2_HDR_SIZE : NiftiHeader.ANZ_HDR_SIZE) + 4;
+        ByteBuffer bb = ByteBuffer.allocate(8).order(order);
+
+        while (start_addr < ds.getVoxOffset())
+        {
+            if (readFully(is, bb.array(), 0, 8) < 8)
+                throw new EOFException("truncated nifti extension");
+
+            int[] size_code = new int[2];
+            size_code[0] = bb.getInt(0);
+            size_code[1] = bb.getInt(4);
+
+            int nb = size_code[0] - NiftiHeader.EXT_KEY_SIZE;
+            if (nb < 0)
+                throw new IOException("Error: invalid size " + size_code[0] + " for extension " + (ds.extensions_list.size() + 1));
+
+            byte[] eblob = new byte[nb];
+            if (readFully(is, eblob, 0, nb) < nb)
+                throw new EOFException("truncated nifti extension");
+            ds.extension_blobs.add(eblob);
+            ds.extensions_list.add(size_code);
+            start_addr += (size_code[0]);
+
+            if (start_addr > ds.getVoxOffset())
+                throw new IOException("Error: Data  for extension " + (ds.extensions_list.size())
+                        + " appears to overrun start of image data.");
+        }
     }
 
     public byte[] encodeHeader() throws IOException
@@ -794,6 +1019,37 @@ public class NiftiHeader
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         DataOutput dout = (this.little_endian) ? new LEDataOutputStream(os) : new DataOutputStream(os);
 
+        if (this.version == 2)
+            encodeMain2(dout);
+        else
+            encodeMain(dout);
+
+        if (this.extension[0] != 0)
+        {
+            for (int i = 0; i < 4; i++)
+                dout.writeByte((int) this.extension[i]);
+
+            for (int i = 0; i < this.extensions_list.size(); i++)
+            {
+                int[] size_code = this.extensions_list.get(i);
+                dout.writeInt(size_code[0]);
+                dout.writeInt(size_code[1]);
+
+                byte[] eblob = this.extension_blobs.get(i);
+                dout.write(eblob);
+            }
+        }
+
+        if (this.little_endian)
+            ((LEDataOutputStream) dout).close();
+        else
+            ((DataOutputStream) dout).close();
+
+        return os.toByteArray();
+    }
+
+    private void encodeMain(DataOutput dout) throws IOException
+    {
         dout.writeInt(this.sizeof_hdr);
 
         if (this.data_type_string.length() >= 10)
@@ -875,29 +1131,57 @@ public class NiftiHeader
 
         dout.write(NiftiHeader.setStringSize(this.intent_name, 16), 0, 16);
         dout.write(NiftiHeader.setStringSize(this.magic, 4), 0, 4);
+    }
 
-        if (this.extension[0] != 0)
-        {
-            for (int i = 0; i < 4; i++)
-                dout.writeByte((int) this.extension[i]);
+    private void encodeMain2(DataOutput dout) throws IOException
+    {
+        dout.writeInt(NII2_HDR_SIZE);
+        dout.write(NiftiHeader.setStringSize(this.magic, 4), 0, 4);
+        dout.write(NII2_SIGNATURE);
+        dout.writeShort(this.datatype);
+        dout.writeShort(this.bitpix);
 
-            for (int i = 0; i < this.extensions_list.size(); i++)
-            {
-                int[] size_code = this.extensions_list.get(i);
-                dout.writeInt(size_code[0]);
-                dout.writeInt(size_code[1]);
+        for (int i = 0; i < 8; i++)
+            dout.writeLong(this.dims[i]);
 
-                byte[] eblob = this.extension_blobs.get(i);
-                dout.write(eblob);
-            }
-        }
+        for (int i = 0; i < 3; i++)
+            dout.writeDouble(this.intent[i]);
+        for (int i = 0; i < 8; i++)
+            dout.writeDouble(this.pixdim[i]);
+
+        dout.writeLong(this.offset);
+        dout.writeDouble(this.scl_slope);
+        dout.writeDouble(this.scl_inter);
+        dout.writeDouble(this.cal_max);
+        dout.writeDouble(this.cal_min);
+        dout.writeDouble(this.slice_duration);
+        dout.writeDouble(this.toffset);
+        dout.writeLong(this.slice_start);
+        dout.writeLong(this.slice_end);
+        dout.write(NiftiHeader.setStringSize(this.descrip, 80), 0, 80);
+        dout.write(NiftiHeader.setStringSize(this.aux_file, 24), 0, 24);
+        dout.writeInt(this.qform_code);
+        dout.writeInt(this.sform_code);
 
-        if (this.little_endian)
-            ((LEDataOutputStream) dout).close();
-        else
-            ((DataOutputStream) dout).close();
+        for (int i = 0; i < 3; i++)
+            dout.writeDouble(this.quatern[i]);
+        for (int i = 0; i < 3; i++)
+            dout.writeDouble(this.qoffset[i]);
+        for (int i = 0; i < 4; i++)
+            dout.writeDouble(this.srow_x[i]);
+        for (int i = 0; i < 4; i++)
+            dout.writeDouble(this.srow_y[i]);
+        for (int i = 0; i < 4; i++)
+            dout.writeDouble(this.srow_z[i]);
 
-        return os.toByteArray();
+        dout.writeInt(this.slice_code);
+        dout.writeInt(((int) (this.xyz_unit_code) & 007) | ((int) (this.t_unit_code) & 070));
+        dout.writeInt(this.intent_code);
+        dout.write(NiftiHeader.setStringSize(this.intent_name, 16), 0, 16);
+
+        int spf_dims = ((int) (this.freq_dim) & 3) | (((int) (this.phase_dim) & 3) << 2) | (((int) (this.slice_dim) & 3) << 4);
+        dout.writeByte(spf_dims);
+        dout.write(new byte[15]);
     }
 
     public String orientation()
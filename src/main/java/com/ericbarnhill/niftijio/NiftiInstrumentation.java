@@ -0,0 +1,84 @@
+package com.ericbarnhill.niftijio;
+
+import java.util.Arrays;
+
+/**
+ * Registry of the listeners that receive a {@link NiftiEvent} for every read and write.
+ * <p/>
+ * Without listeners the readers and writers check a single volatile field and measure nothing,
+ * so the instrumentation costs nothing when it is not used.  With a listener, the streams of each
+ * operation are wrapped to count bytes and time.  The events can also be recorded by JDK Flight
+ * Recorder, on runtimes that include it, see {@link #enableFlightRecorder()}.
+ */
+public final class NiftiInstrumentation
+{
+    private static volatile NiftiListener[] listeners = new NiftiListener[0];
+    private static volatile FlightRecorder recorder;
+    private static FlightRecorder flightRecorder;
+
+    private NiftiInstrumentation()
+    {
+    }
+
+    public static synchronized void addListener(NiftiListener listener)
+    {
+        NiftiListener[] next = Arrays.copyOf(listeners, listeners.length + 1);
+        next[listeners.length] = listener;
+        listeners = next;
+    }
+
+    public static synchronized void removeListener(NiftiListener listener)
+    {
+        for (int i = 0; i < listeners.length; i++)
+            if (listeners[i] == listener)
+            {
+                NiftiListener[] next = new NiftiListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, next, 0, i);
+                System.arraycopy(listeners, i + 1, next, i, next.length - i);
+                listeners = next;
+                return;
+            }
+    }
+
+    /** Commit an event named com.ericbarnhill.niftijio.IO to Flight Recorder for every read and write.
+     *
+     * The event type is defined when this is first called, and its events are recorded when a
+     * recording enables it, e.g. with the default settings of JDK Flight Recorder.
+     *
+     * @return false if the runtime does not include Flight Recorder
+     */
+    public static synchronized boolean enableFlightRecorder()
+    {
+        if (flightRecorder == null)
+        {
+            flightRecorder = FlightRecorder.create();
+            if (flightRecorder == null)
+                return false;
+        }
+        recorder = flightRecorder;
+        return true;
+    }
+
+    public static synchronized void disableFlightRecorder()
+    {
+        recorder = null;
+    }
+
+    /** Whether any listener is registered or Flight Recorder is enabled, checked before measuring an operation. */
+    static boolean enabled()
+    {
+        return listeners.length > 0 || recorder != null;
+    }
+
+    /** The Flight Recorder that begins an event for every operation, or null if it is not enabled. */
+    static FlightRecorder recorder()
+    {
+        return recorder;
+    }
+
+    static void publish(NiftiEvent event)
+    {
+        for (NiftiListener listener : listeners)
+            listener.completed(event);
+    }
+}
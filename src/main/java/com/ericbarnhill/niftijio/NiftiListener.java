@@ -0,0 +1,12 @@
+package com.ericbarnhill.niftijio;
+
+/**
+ * Receives the measurements of reads and writes, see {@link NiftiInstrumentation#addListener}.
+ * <p/>
+ * Listeners are called on the thread that read or wrote the file, after it completed, so they
+ * should return quickly and must not throw.
+ */
+public interface NiftiListener
+{
+    void completed(NiftiEvent event);
+}
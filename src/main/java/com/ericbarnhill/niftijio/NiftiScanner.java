@@ -0,0 +1,199 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Batch reader of the headers of all NIFTI files in a directory tree.
+ * <p/>
+ * Files ending in .nii, .nii.gz, .hdr or .hdr.gz are found while walking the tree, and their headers
+ * are read on a thread pool with a bounded number of files in flight.  Only the header of each
+ * file is read, and only its main fields are kept.
+ */
+public class NiftiScanner
+{
+    /** The main fields of the header of one file. */
+    public static final class Record
+    {
+        public final String filename;
+        public final short datatype;
+        /** The version of the format, 1 or 2. */
+        public final int version;
+        public final short[] dim;
+        /** The dimensions, which exceed the range of dim in some NIfTI-2 files. */
+        public final long[] dims;
+        public final float[] pixdim;
+        public final float scl_slope;
+        public final float scl_inter;
+        public final long vox_offset;
+        /** The reason the header could not be read, or null if it was. */
+        public final String error;
+
+        private Record(String filename, NiftiHeader hdr)
+        {
+            this.filename = filename;
+            this.datatype = hdr.datatype;
+            this.version = hdr.version;
+            this.dim = hdr.dim.clone();
+            this.dims = new long[8];
+            for (int i = 0; i < 8; i++)
+                this.dims[i] = hdr.getDim(i);
+            this.pixdim = hdr.pixdim.clone();
+            this.scl_slope = hdr.scl_slope;
+            this.scl_inter = hdr.scl_inter;
+            this.vox_offset = hdr.getVoxOffset();
+            this.error = null;
+        }
+
+        private Record(String filename, String error)
+        {
+            this.filename = filename;
+            this.datatype = NiftiHeader.DT_NONE;
+            this.version = 0;
+            this.dim = new short[8];
+            this.dims = new long[8];
+            this.pixdim = new float[8];
+            this.scl_slope = 0;
+            this.scl_inter = 0;
+            this.vox_offset = 0;
+            this.error = error;
+        }
+    }
+
+    private NiftiScanner()
+    {
+    }
+
+    /** Read the headers of the NIFTI files in a directory tree, using one thread per processor.
+     *
+     * @param root the directory to scan
+     * @return a record for every file, sorted by file name
+     * @throws IOException if the tree cannot be walked
+     */
+    public static List<Record> scan(String root) throws IOException
+    {
+        return scan(root, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Read the headers of the NIFTI files in a directory tree.
+     *
+     * @param root the directory to scan
+     * @param threads the number of threads reading headers
+     * @return a record for every file, sorted by file name, including files whose header could not be read
+     * @throws IOException if the tree cannot be walked
+     */
+    public static List<Record> scan(String root, int threads) throws IOException
+    {
+        final int limit = 4 * Math.max(threads, 1);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        final CompletionService<Record> service = new ExecutorCompletionService<Record>(executor);
+        final List<Record> out = new ArrayList<Record>();
+
+        try
+        {
+            final int[] pending = {0};
+            Files.walkFileTree(Paths.get(root), new SimpleFileVisitor<Path>()
+            {
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    final String name = file.toString();
+                    if (!attrs.isRegularFile() || !isNifti(name))
+                        return FileVisitResult.CONTINUE;
+
+                    if (pending[0] == limit)
+                    {
+                        out.add(take(service));
+                        pending[0]--;
+                    }
+
+                    service.submit(new Callable<Record>()
+                    {
+                        public Record call()
+                        {
+                            return read(name);
+                        }
+                    });
+                    pending[0]++;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException e)
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            for (; pending[0] > 0; pending[0]--)
+                out.add(take(service));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        Collections.sort(out, new Comparator<Record>()
+        {
+            public int compare(Record a, Record b)
+            {
+                return a.filename.compareTo(b.filename);
+            }
+        });
+
+        return out;
+    }
+
+    /** Check whether a file name has the extension of a NIFTI file. */
+    public static boolean isNifti(String filename)
+    {
+        return filename.endsWith(".nii") || filename.endsWith(".nii.gz") || filename.endsWith(".hdr") || filename.endsWith(".hdr.gz");
+    }
+
+    private static Record read(String filename)
+    {
+        try
+        {
+            return new Record(filename, NiftiHeader.read(filename));
+        }
+        catch (IOException e)
+        {
+            return new Record(filename, String.valueOf(e.getMessage()));
+        }
+        catch (RuntimeException e)
+        {
+            return new Record(filename, e.toString());
+        }
+    }
+
+    private static Record take(CompletionService<Record> service) throws IOException
+    {
+        try
+        {
+            return service.take().get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while scanning headers");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("failed to read header", e.getCause());
+        }
+    }
+}
@@ -1,23 +1,30 @@
 package com.ericbarnhill.niftijio;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
 
-public class NiftiVolume
+public class NiftiVolume implements Closeable
 {
     public NiftiHeader header;
     public FourDimensionalArray data;
+    /** The statistics accumulated when the volume was last read or written, or null if none were requested. */
+    public VoxelStatistics statistics;
 
     public NiftiVolume(int nx, int ny, int nz, int dim)
     {
@@ -27,24 +34,26 @@ public class NiftiVolume
 
     public NiftiVolume(NiftiHeader hdr)
     {
-        this.header = hdr;
+        this(hdr, NiftiHeader.NIFTI_TYPE_FLOAT64);
+    }
 
-        int nx = 0;
-        if (hdr.datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64) {
-            nx = hdr.dim[1]*2;
-        } else {
-            nx = hdr.dim[1];
-        }
-        int ny = hdr.dim[2];
-        int nz = hdr.dim[3];
-        int dim = hdr.dim[4];
+    /** Create an empty volume for a header, storing the voxels with the given datatype.
+     *
+     * @param hdr the header describing the volume
+     * @param storage the NIFTI datatype used to hold the voxels in memory
+     */
+    public NiftiVolume(NiftiHeader hdr, short storage)
+    {
+        this.header = hdr;
 
-        if (hdr.dim[0] == 2)
-            nz = 1;
-        if (dim == 0)
-            dim = 1;
+        int[] dims = dimensions(hdr);
+        this.data = new FourDimensionalArray(dims[0], dims[1], dims[2], dims[3], storage);
+    }
 
-        this.data = new FourDimensionalArray(nx,ny,nz,dim);
+    public NiftiVolume(NiftiHeader hdr, FourDimensionalArray data)
+    {
+        this.header = hdr;
+        this.data = data;
     }
 
     public NiftiVolume(double[][][][] data)
@@ -57,19 +66,329 @@ public class NiftiVolume
         this.header = new NiftiHeader(nx, ny, nz, dim);
     }
 
+    /** The size of the voxel array described by a header, where complex voxels take two values along x.
+     *
+     * @return the array sizes along x, y, z and the fourth dimension
+     */
+    static int[] dimensions(NiftiHeader hdr)
+    {
+        int nx = axis(hdr, 1);
+        if (hdr.datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64)
+            nx = axis(hdr, 1, 2);
+        int ny = axis(hdr, 2);
+        int nz = axis(hdr, 3);
+        int dim = axis(hdr, 4);
+
+        if (hdr.getDim(0) == 2)
+            nz = 1;
+        if (dim == 0)
+            dim = 1;
+
+        return new int[] {nx, ny, nz, dim};
+    }
+
+    /** The size along a dimension of a header times the values per voxel, which must fit in an int. */
+    private static int axis(NiftiHeader hdr, int i, int values)
+    {
+        long n = hdr.getDim(i) * values;
+        if (n > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("dimension " + i + " of " + hdr.getDim(i) + " is too large for an array");
+        return (int) n;
+    }
+
+    private static int axis(NiftiHeader hdr, int i)
+    {
+        return axis(hdr, i, 1);
+    }
+
+    /** Map an uncompressed NIFTI file into memory, without reading the voxels.
+     *
+     * The voxels are decoded when they are accessed, and the pages of the file are shared through
+     * the operating system's cache.  The mapping is read-only.
+     *
+     * @param filename the name of an uncompressed NIFTI file
+     * @return a NIFTI volume backed by the file
+     * @throws IOException
+     */
+    public static NiftiVolume map(String filename) throws IOException {
+        return map(filename, FileChannel.MapMode.READ_ONLY);
+    }
+
+    /** Map an uncompressed NIFTI file into memory, without reading the voxels.
+     *
+     * @param filename the name of an uncompressed NIFTI file
+     * @param mode READ_ONLY, READ_WRITE to write changes through to the file, or PRIVATE to keep changes in memory
+     * @return a NIFTI volume backed by the file
+     * @throws IOException
+     */
+    public static NiftiVolume map(String filename, FileChannel.MapMode mode) throws IOException {
+        if (filename.endsWith(".gz"))
+            throw new IOException("cannot map compressed file " + filename);
+
+        NiftiHeader hdr = NiftiHeader.read(filename);
+        VoxelCodec.check(hdr.datatype, "map");
+
+        IoProbe probe = IoProbe.start(NiftiEvent.Kind.READ, filename);
+        int[] dims = dimensions(hdr);
+        long size = (long) dims[0] * dims[1] * dims[2] * dims[3];
+        ByteOrder order = VoxelCodec.order(hdr);
+
+        RandomAccessFile file = new RandomAccessFile(filename, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            VoxelStorage storage = BufferStorage.map(file.getChannel(), hdr.getVoxOffset(), hdr.datatype, size, order, mode);
+            FourDimensionalArray data = new FourDimensionalArray(dims[0], dims[1], dims[2], dims[3], storage);
+            data.setScaling(hdr.scl_slope, hdr.scl_inter);
+            if (probe != null)
+                probe.finish();
+            return new NiftiVolume(hdr, data);
+        } finally {
+            file.close();
+        }
+    }
+
     public static NiftiVolume read(String filename) throws IOException {
+        return read(filename, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Read a NIFTI volume from a file.
+     *
+     * Block gzip (BGZF) files are inflated with the given number of threads, while ordinary gzip
+     * files are inflated sequentially.
+     *
+     * @param filename the name of the file to read
+     * @param threads the number of threads inflating a BGZF file
+     * @return a NIFTI volume
+     * @throws IOException
+     */
+    public static NiftiVolume read(String filename, int threads) throws IOException {
+        return read(filename, threads, false);
+    }
+
+    /** Read a NIFTI volume from a file, optionally keeping the stored values unscaled.
+     *
+     * With lazy scaling the voxels are kept in the datatype of the file and the array applies
+     * scl_slope and scl_inter when values are accessed as doubles, so a scaled INT16 file takes two
+     * bytes per voxel instead of eight.  Writing such a volume with an unchanged header stores the
+     * values as they were read.
+     *
+     * @param filename the name of the file to read
+     * @param threads the number of threads inflating a BGZF file
+     * @param lazy whether to keep the stored values and scale them on access
+     * @return a NIFTI volume
+     * @throws IOException
+     */
+    public static NiftiVolume read(String filename, int threads, boolean lazy) throws IOException {
+        return read(filename, threads, lazy, null);
+    }
+
+    /** Read a NIFTI volume from a file, accumulating statistics of the voxels while they are decoded.
+     *
+     * The statistics are filled in the same pass over the voxels as the decoding, so the range and
+     * histogram of a large volume are available without sweeping over it again.  They are also kept
+     * in the statistics field of the volume.
+     *
+     * @param filename the name of the file to read
+     * @param threads the number of threads inflating a BGZF file
+     * @param lazy whether to keep the stored values and scale them on access
+     * @param stats the statistics to fill, which may have a histogram, or null for none
+     * @return a NIFTI volume
+     * @throws IOException
+     */
+    public static NiftiVolume read(String filename, int threads, boolean lazy, VoxelStatistics stats) throws IOException {
         NiftiHeader hdr = NiftiHeader.read(filename);
 
+        IoProbe probe = IoProbe.start(NiftiEvent.Kind.READ, hdr.filename);
         InputStream is = new FileInputStream(hdr.filename);
-        if (hdr.filename.endsWith(".gz"))
-            is = new GZIPInputStream(is);
+        if (probe != null)
+            is = probe.file(is);
+        if (hdr.filename.endsWith(".gz")) {
+            is = ParallelGZIPInputStream.open(is, threads);
+            if (probe != null)
+                is = probe.inflated(is);
+        }
         try {
-            return read(new BufferedInputStream(is), hdr);
+            NiftiVolume out = read(new BufferedInputStream(is), hdr, lazy, stats, probe);
+            if (probe != null)
+                probe.finish();
+            return out;
         } finally {
             is.close();
         }
     }
 
+    /** Read a NIFTI volume from a file without blocking the caller, on the common fork/join pool.
+     *
+     * The pool may be blocked by the reads, see {@link #readAsync(String, ExecutorService)}.
+     *
+     * @param filename the name of the file to read
+     * @return a future completed with the volume, or exceptionally if it cannot be read
+     */
+    public static CompletableFuture<NiftiVolume> readAsync(String filename) {
+        return readAsync(filename, ForkJoinPool.commonPool());
+    }
+
+    /** Read a NIFTI volume from a file without blocking the caller.
+     *
+     * The file is read with an asynchronous channel, and each chunk is inflated and decoded on the
+     * executor when its read completes.  On platforms without asynchronous file I/O, such as Linux,
+     * the channel also performs the reads on threads of the executor, which wait for the disk, so
+     * files should be read on a pool dedicated to I/O rather than the common fork/join pool.
+     *
+     * @param filename the name of the file to read
+     * @param executor the executor running the decoding and completing the future
+     * @return a future completed with the volume, or exceptionally if it cannot be read
+     */
+    public static CompletableFuture<NiftiVolume> readAsync(String filename, ExecutorService executor) {
+        return AsyncReader.start(filename, executor, false).volume;
+    }
+
+    /** Read a NIFTI volume from a file into memory outside of the heap.
+     *
+     * The voxels are kept in direct buffers with the datatype and byte order of the file, so they
+     * are decoded with a plain copy and scaled lazily, and the heap only holds the header.  The
+     * memory should be released with {@link #close()} once the volume is no longer needed.
+     *
+     * @param filename the name of the file to read
+     * @param threads the number of threads inflating a BGZF file
+     * @return a NIFTI volume
+     * @throws IOException
+     */
+    public static NiftiVolume readDirect(String filename, int threads) throws IOException {
+        NiftiHeader hdr = NiftiHeader.read(filename);
+        VoxelCodec.check(hdr.datatype, "read");
+
+        IoProbe probe = IoProbe.start(NiftiEvent.Kind.READ, hdr.filename);
+        int[] dims = dimensions(hdr);
+        long size = (long) dims[0] * dims[1] * dims[2] * dims[3];
+        long start = System.nanoTime();
+        VoxelStorage storage = BufferStorage.allocateDirect(hdr.datatype, size, VoxelCodec.order(hdr));
+        long alloc = System.nanoTime() - start;
+        NiftiVolume out = new NiftiVolume(hdr, new FourDimensionalArray(dims[0], dims[1], dims[2], dims[3], storage));
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(hdr.filename);
+            if (probe != null)
+                is = probe.file(is);
+            if (hdr.filename.endsWith(".gz")) {
+                is = ParallelGZIPInputStream.open(is, threads);
+                if (probe != null)
+                    is = probe.inflated(is);
+            }
+            BufferedInputStream bis = new BufferedInputStream(is);
+            VoxelCodec.skipFully(bis, hdr.getVoxOffset());
+            VoxelCodec.decode(bis, hdr, storage, false);
+            out.data.setScaling(hdr.scl_slope, hdr.scl_inter);
+            if (probe != null) {
+                probe.allocatedBytes = storage.sizeInBytes();
+                probe.allocateNanos = alloc;
+                probe.workNanos = System.nanoTime() - start - alloc;
+            }
+        } catch (IOException e) {
+            storage.close();
+            throw e;
+        } catch (RuntimeException e) {
+            storage.close();
+            throw e;
+        } finally {
+            if (is != null)
+                is.close();
+        }
+
+        if (probe != null)
+            probe.finish();
+        return out;
+    }
+
+    /** Read a box of voxels from a file without decoding the rest of it.
+     *
+     * Uncompressed files are read with positional reads of the rows in the box, while compressed
+     * files are inflated up to the last row and the voxels in between are skipped.  A compressed
+     * file with an index built by {@link GZipIndex#open(String)} is inflated from the checkpoint
+     * nearest to each row instead of from its start.  Each range
+     * includes its lower bound and excludes its upper bound, and x counts values, so a complex
+     * volume has two values per voxel along x.
+     *
+     * @param filename the name of the file to read
+     * @return the voxels of the region, indexed from zero
+     * @throws IOException
+     */
+    public static FourDimensionalArray readRegion(String filename, int x0, int x1, int y0, int y1, int z0, int z1, int t0, int t1) throws IOException {
+        return readRegion(filename, x0, x1, y0, y1, z0, z1, t0, t1, false);
+    }
+
+    /** Read a box of voxels from a file without decoding the rest of it.
+     *
+     * As {@link #readRegion(String, int, int, int, int, int, int, int, int)}, but with index set a
+     * compressed file without a valid index is indexed first, which inflates it once and saves the
+     * index next to it, so that later reads of regions of the file are fast.
+     *
+     * @param filename the name of the file to read
+     * @param index whether to build the index of a compressed file if it has none
+     * @return the voxels of the region, indexed from zero
+     * @throws IOException
+     */
+    public static FourDimensionalArray readRegion(String filename, int x0, int x1, int y0, int y1, int z0, int z1, int t0, int t1, boolean index) throws IOException {
+        NiftiHeader hdr = NiftiHeader.read(filename);
+        int[] bounds = {x0, x1, y0, y1, z0, z1, t0, t1};
+        GZipIndex gzi = null;
+        if (filename.endsWith(".gz"))
+            gzi = index ? GZipIndex.open(filename) : GZipIndex.load(filename);
+
+        IoProbe probe = IoProbe.start(NiftiEvent.Kind.READ, filename);
+        long start = System.nanoTime();
+        FourDimensionalArray out;
+        if (gzi != null) {
+            RegionReader.IndexSource src = new RegionReader.IndexSource(gzi);
+            try {
+                out = RegionReader.read(hdr, probe != null ? probe.inflated(src) : src, bounds);
+            } finally {
+                src.close();
+            }
+        } else if (filename.endsWith(".gz")) {
+            InputStream is = new FileInputStream(filename);
+            try {
+                if (probe != null)
+                    is = probe.file(is);
+                is = ParallelGZIPInputStream.open(is, Runtime.getRuntime().availableProcessors());
+                if (probe != null)
+                    is = probe.inflated(is);
+                out = RegionReader.read(hdr, new RegionReader.StreamSource(is, 0), bounds);
+            } finally {
+                is.close();
+            }
+        } else {
+            RandomAccessFile file = new RandomAccessFile(filename, "r");
+            try {
+                RegionReader.Source src = new RegionReader.ChannelSource(file.getChannel());
+                out = RegionReader.read(hdr, probe != null ? probe.file(src) : src, bounds);
+            } finally {
+                file.close();
+            }
+        }
+
+        if (probe != null) {
+            probe.allocatedBytes = out.storage().sizeInBytes();
+            probe.workNanos = System.nanoTime() - start;
+            probe.finish();
+        }
+        return out;
+    }
+
+    /** Read the voxels of a file inside a mask into a sparse volume.
+     *
+     * The file is decoded one frame at a time, with the scaling applied, and only the voxels of the
+     * mask are kept, so the full volume is never held in memory.
+     *
+     * @param filename the name of the file to read
+     * @param mask an array of the size of a frame whose first volume is not zero inside the mask
+     * @return the voxels of the mask, with the header of the file
+     * @throws IOException
+     */
+    public static SparseVolume readSparse(String filename, FourDimensionalArray mask) throws IOException {
+        return SparseVolume.read(filename, mask);
+    }
+
     /** Read the NIFTI volume from a NIFTI input stream.
      * 
      * @param is an input stream pointing to the beginning of the NIFTI file, uncompressed.
@@ -88,212 +407,226 @@ public class NiftiVolume
      * @throws IOException 
      */
     public static NiftiVolume read(InputStream is, String filename) throws IOException {
-        BufferedInputStream bis = new BufferedInputStream(is);
+        return read(is, filename, false);
+    }
+
+    /** Read the NIFTI volume from a NIFTI input stream, optionally keeping the stored values unscaled.
+     * 
+     * @param is an input stream pointing to the beginning of the NIFTI file, uncompressed. The operation will close the stream.
+     * @param filename the name of the original file, can be null
+     * @param lazy whether to keep the stored values and scale them on access, see {@link #read(String, int, boolean)}
+     * @return a NIFTI volume
+     * @throws IOException 
+     */
+    public static NiftiVolume read(InputStream is, String filename, boolean lazy) throws IOException {
+        IoProbe probe = IoProbe.start(NiftiEvent.Kind.READ, filename);
+        BufferedInputStream bis = new BufferedInputStream(probe != null ? probe.file(is) : is);
         try {
             bis.mark(2048);
             NiftiHeader hdr = NiftiHeader.read(bis, filename);
             bis.reset();
-            return read(bis, hdr);
+            NiftiVolume out = read(bis, hdr, lazy, null, probe);
+            if (probe != null)
+                probe.finish();
+            return out;
         } finally {
             bis.close();
         }
     }
 
-    private static NiftiVolume read(BufferedInputStream is, NiftiHeader hdr) throws IOException {
+    private static NiftiVolume read(BufferedInputStream is, NiftiHeader hdr, boolean lazy, VoxelStatistics stats, IoProbe probe) throws IOException {
+        VoxelCodec.check(hdr.datatype, "read");
+
+        long start = System.nanoTime();
         // skip header
-        is.skip((long) hdr.vox_offset);
-        int nx = 0;
-        if (hdr.datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64) {
-            nx = hdr.dim[1]*2; // COMPLEX CASE DOUBLES X
-        } else {
-            nx = hdr.dim[1];
-        }
-        int ny = hdr.dim[2];
-        int nz = hdr.dim[3];
-        int dim = hdr.dim[4];
+        VoxelCodec.skipFully(is, hdr.getVoxOffset());
 
-        if (hdr.dim[0] == 2)
-            nz = 1;
-        if (dim == 0)
-            dim = 1;
+        long alloc = System.nanoTime();
+        NiftiVolume out = new NiftiVolume(hdr, lazy ? VoxelStorage.rawType(hdr) : VoxelStorage.storageType(hdr));
+        alloc = System.nanoTime() - alloc;
+        VoxelCodec.decode(is, hdr, out.data.storage(), VoxelCodec.buffer(hdr), !lazy, stats);
+        if (probe != null) {
+            probe.allocatedBytes = out.data.storage().sizeInBytes();
+            probe.allocateNanos = alloc;
+            probe.workNanos = System.nanoTime() - start - alloc;
+        }
+        if (lazy)
+            out.data.setScaling(hdr.scl_slope, hdr.scl_inter);
+        out.statistics = stats;
 
-        NiftiVolume out = new NiftiVolume(hdr);
-        DataInput di = hdr.little_endian ? new LEDataInputStream(is) : new DataInputStream(is);
+        return out;
+    }
 
-        double v;
+    /** Release the memory of voxels stored outside of the heap or mapped from a file, after which the volume must not be used. */
+    public void close()
+    {
+        data.close();
+    }
 
-        for (int d = 0; d < dim; d++)
-        {
-            for (int k = 0; k < nz; k++)
-                for (int j = 0; j < ny; j++)
-                        for (int i = 0; i < nx; i++)
-                        {
-                            switch (hdr.datatype)
-                            {
-                            case NiftiHeader.NIFTI_TYPE_INT8:
-                            case NiftiHeader.NIFTI_TYPE_UINT8:
-                                v = di.readByte();
-
-                                if ((hdr.datatype == NiftiHeader.NIFTI_TYPE_UINT8) && v < 0)
-                                    v = v + 256d;
-                                if (hdr.scl_slope != 0)
-                                    v = v * hdr.scl_slope + hdr.scl_inter;
-                                break;
-                            case NiftiHeader.NIFTI_TYPE_INT16:
-                            case NiftiHeader.NIFTI_TYPE_UINT16:
-                                v = (double) (di.readShort());
-
-                                if ((hdr.datatype == NiftiHeader.NIFTI_TYPE_UINT16) && (v < 0))
-                                    v = Math.abs(v) + (double) (1 << 15);
-                                if (hdr.scl_slope != 0)
-                                    v = v * hdr.scl_slope + hdr.scl_inter;
-                                break;
-                            case NiftiHeader.NIFTI_TYPE_INT32:
-                            case NiftiHeader.NIFTI_TYPE_UINT32:
-                                v = (double) (di.readInt());
-                                if ((hdr.datatype == NiftiHeader.NIFTI_TYPE_UINT32) && (v < 0))
-                                    v = Math.abs(v) + (double) (1 << 31);
-                                if (hdr.scl_slope != 0)
-                                    v = v * hdr.scl_slope + hdr.scl_inter;
-                                break;
-                            case NiftiHeader.NIFTI_TYPE_INT64:
-                            case NiftiHeader.NIFTI_TYPE_UINT64:
-                                v = (double) (di.readLong());
-                                if ((hdr.datatype == NiftiHeader.NIFTI_TYPE_UINT64) && (v < 0))
-                                    v = Math.abs(v) + (double) (1 << 63);
-                                if (hdr.scl_slope != 0)
-                                    v = v * hdr.scl_slope + hdr.scl_inter;
-                                break;
-                            case NiftiHeader.NIFTI_TYPE_FLOAT32:
-                                v = (double) (di.readFloat());
-                                if (hdr.scl_slope != 0)
-                                    v = v * hdr.scl_slope + hdr.scl_inter;
-                                break;
-                            case NiftiHeader.NIFTI_TYPE_FLOAT64:
-                                v = (double) (di.readDouble());
-                                if (hdr.scl_slope != 0)
-                                    v = v * hdr.scl_slope + hdr.scl_inter;
-                                break;
-                            case NiftiHeader.NIFTI_TYPE_COMPLEX64:
-                                v = (double) (di.readFloat());
-                                if (hdr.scl_slope != 0)
-                                    v = v * hdr.scl_slope + hdr.scl_inter;
-                                break;
-                            case NiftiHeader.DT_NONE:
-                            case NiftiHeader.DT_BINARY:
-                            case NiftiHeader.NIFTI_TYPE_FLOAT128:
-                            case NiftiHeader.NIFTI_TYPE_RGB24:
-                            case NiftiHeader.NIFTI_TYPE_COMPLEX128:
-                            case NiftiHeader.NIFTI_TYPE_COMPLEX256:
-                            case NiftiHeader.DT_ALL:
-                            default:
-                            throw new IOException("Sorry, cannot yet read nifti-1 datatype " + NiftiHeader.decodeDatatype(hdr.datatype));
-                        }
-
-                            out.data.set(i,j,k,d,v);
-                    }
-        }
+    /** Check that the data matches the header and can be written. */
+    void check() throws IOException
+    {
+        NiftiHeader hdr = this.header;
+        long dim = hdr.getDim(4) > 0 ? hdr.getDim(4) : 1;
+        long nz = hdr.getDim(3) > 0 ? hdr.getDim(3) : 1;
+        long ny = hdr.getDim(2);
+        long nx = hdr.getDim(1);
+        if (hdr.datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64) {
+            nx = nx*2;
+        } 
+        if (nx != data.sizeX() || ny != data.sizeY() || nz != data.sizeZ() || dim != data.dimension())
+            throw new IOException("header describes " + nx + "x" + ny + "x" + nz + "x" + dim + " voxels but the data holds "
+                    + data.sizeX() + "x" + data.sizeY() + "x" + data.sizeZ() + "x" + data.dimension());
+        VoxelCodec.check(VoxelCodec.encoding(hdr), "write");
+    }
 
-        return out;
+    /** Encode a header, padded with zeros up to the start of the voxels. */
+    static byte[] encodeHeader(NiftiHeader hdr) throws IOException
+    {
+        byte[] hbytes = hdr.encodeHeader();
+        long nextra = hdr.getVoxOffset() - hbytes.length;
+        return nextra > 0 ? Arrays.copyOf(hbytes, (int) (hbytes.length + nextra)) : hbytes;
     }
 
     public void write(String filename) throws IOException
+    {
+        write(filename, 1, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /** Write the volume without blocking the caller, on the common fork/join pool.
+     *
+     * The pool may be blocked by the writes, see {@link #writeAsync(String, ExecutorService, int)}.
+     *
+     * @param filename the name of the file to write
+     * @return a future completed when the file is written, or exceptionally if it cannot be
+     */
+    public CompletableFuture<Void> writeAsync(String filename)
+    {
+        return writeAsync(filename, ForkJoinPool.commonPool(), Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /** Write the volume without blocking the caller, compressing it if the file name ends with .gz.
+     *
+     * The volume is encoded a chunk at a time on the executor as the previous write completes, so it
+     * must not be modified until the future completes.  As for {@link #readAsync(String, ExecutorService)},
+     * the writes may wait for the disk on threads of the executor.
+     *
+     * @param filename the name of the file to write
+     * @param executor the executor running the encoding and completing the future
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @return a future completed when the file is written, or exceptionally if it cannot be
+     */
+    public CompletableFuture<Void> writeAsync(String filename, ExecutorService executor, int level)
+    {
+        return AsyncWriter.start(this, filename, executor, level).done;
+    }
+
+    /** Write the volume, compressing it with several threads if the file name ends with .gz.
+     *
+     * @param filename the name of the file to write
+     * @param threads the number of threads compressing the output
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @throws IOException
+     */
+    public void write(String filename, int threads, int level) throws IOException
+    {
+        write(filename, threads, level, null);
+    }
+
+    /** Write the volume, accumulating statistics of the voxels while they are encoded.
+     *
+     * The range of the statistics is stored in cal_min, cal_max, glmin and glmax of the header.  As
+     * the header precedes the voxels, the file is patched with the updated header once the voxels
+     * are written; a compressed file then starts with a gzip member holding the header in stored
+     * blocks, like the files of {@link NiftiWriter}.  A single accumulator covers all frames of the
+     * volume, as the header holds a single range.
+     *
+     * @param filename the name of the file to write
+     * @param threads the number of threads compressing the output
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @param stats the statistics to fill, which may have a histogram, or null for none
+     * @throws IOException
+     */
+    public void write(String filename, int threads, int level, VoxelStatistics stats) throws IOException
     {
         NiftiHeader hdr = this.header;
         hdr.filename = filename;
+        check();
 
-        int dim = hdr.dim[4] > 0 ? hdr.dim[4] : 1;
-        int nz = hdr.dim[3] > 0 ? hdr.dim[3] : 1;
-        int ny = hdr.dim[2];
-        int nx = hdr.dim[1];
-        if (hdr.datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64) {
-            nx = nx*2;
-        } 
-        OutputStream os = new BufferedOutputStream(new FileOutputStream(hdr.filename));
-        if (hdr.filename.endsWith(".gz"))
-            os = new BufferedOutputStream(new GZIPOutputStream(os));
+        IoProbe probe = IoProbe.start(NiftiEvent.Kind.WRITE, hdr.filename);
+        FileOutputStream fos = new FileOutputStream(hdr.filename);
+        OutputStream os = null;
+        WritableByteChannel channel = fos.getChannel();
+        boolean patch = stats != null && hdr.filename.endsWith(".gz");
+        long start = System.nanoTime();
+        try
+        {
+            // the gzip streams write their header as they are created, so they are closed with the file on failure
+            if (hdr.filename.endsWith(".gz"))
+            {
+                OutputStream file = probe != null ? probe.file(fos) : fos;
+                if (patch)
+                {
+                    // the header goes in a member of its own, so it can be replaced once the voxels are written
+                    byte[] hbytes = encodeHeader(hdr);
+                    file.write(NiftiWriter.storedMember(hbytes));
+                    if (probe != null)
+                        probe.dataBytes += hbytes.length;
+                    file = NiftiWriter.unclosed(file);
+                }
+                if (threads > 1)
+                    os = new ParallelGZIPOutputStream(file, threads, level);
+                else
+                    os = new LevelGZIPOutputStream(file, VoxelCodec.CHUNK_BYTES, level);
+                channel = Channels.newChannel(os);
+                if (probe != null)
+                    channel = probe.deflated(channel);
+            }
+            else if (probe != null)
+            {
+                channel = probe.file(channel);
+            }
 
-        DataOutput dout = (hdr.little_endian) ? new LEDataOutputStream(os) : new DataOutputStream(os);
+            if (!patch)
+                VoxelCodec.writeFully(channel, ByteBuffer.wrap(encodeHeader(hdr)));
 
-        byte[] hbytes = hdr.encodeHeader();
-        dout.write(hbytes);
-
-        int nextra = (int) hdr.vox_offset - hbytes.length;
-        byte[] extra = new byte[nextra];
-        dout.write(extra);
-        for (int d = 0; d < dim; d++)
-            for (int k = 0; k < nz; k++)
-                for (int j = 0; j < ny; j++)
-                    for (int i = 0; i < nx; i++)
-                    {
-                        double v = this.data.get(i,j,k,d);
-
-                        switch (hdr.datatype)
-                        {
-                        case NiftiHeader.NIFTI_TYPE_INT8:
-                        case NiftiHeader.NIFTI_TYPE_UINT8:
-                            if (hdr.scl_slope == 0)
-                                dout.writeByte((int) v);
-                            else
-                                dout.writeByte((int) ((v - hdr.scl_inter) / hdr.scl_slope));
-                            break;
-                        case NiftiHeader.NIFTI_TYPE_INT16:
-                        case NiftiHeader.NIFTI_TYPE_UINT16:
-                            if (hdr.scl_slope == 0)
-                                dout.writeShort((short) (v));
-                            else
-                                dout.writeShort((short) ((v - hdr.scl_inter) / hdr.scl_slope));
-                            break;
-                        case NiftiHeader.NIFTI_TYPE_INT32:
-                        case NiftiHeader.NIFTI_TYPE_UINT32:
-                            if (hdr.scl_slope == 0)
-                                dout.writeInt((int) (v));
-                            else
-                                dout.writeInt((int) ((v - hdr.scl_inter) / hdr.scl_slope));
-                            break;
-                        case NiftiHeader.NIFTI_TYPE_INT64:
-                        case NiftiHeader.NIFTI_TYPE_UINT64:
-                            if (hdr.scl_slope == 0)
-                                dout.writeLong((long) Math.rint(v));
-                            else
-                                dout.writeLong((long) Math.rint((v - hdr.scl_inter) / hdr.scl_slope));
-                            break;
-                        case NiftiHeader.NIFTI_TYPE_FLOAT32:
-                            if (hdr.scl_slope == 0)
-                                dout.writeFloat((float) (v));
-                            else
-                                dout.writeFloat((float) ((v - hdr.scl_inter) / hdr.scl_slope));
-                            break;
-                        case NiftiHeader.NIFTI_TYPE_FLOAT64:
-                            if (hdr.scl_slope == 0)
-                                dout.writeDouble(v);
-                            else
-                                dout.writeDouble((v - hdr.scl_inter) / hdr.scl_slope);
-                            break;
-                        case NiftiHeader.DT_NONE:
-                        case NiftiHeader.DT_BINARY:
-                        case NiftiHeader.NIFTI_TYPE_COMPLEX64:
-                            if (hdr.scl_slope == 0)
-                                dout.writeFloat((float)v);
-                            else
-                                dout.writeFloat((float) ((v - hdr.scl_inter) / hdr.scl_slope));
-                            break;
-                        case NiftiHeader.NIFTI_TYPE_FLOAT128:
-                        case NiftiHeader.NIFTI_TYPE_RGB24:
-                        case NiftiHeader.NIFTI_TYPE_COMPLEX128:
-                        case NiftiHeader.NIFTI_TYPE_COMPLEX256:
-                        case NiftiHeader.DT_ALL:
-                        default:
-                            throw new IOException("Sorry, cannot yet write nifti-1 datatype " + NiftiHeader.decodeDatatype(hdr.datatype));
-
-                        }
-                    }
-
-        if (hdr.little_endian)
-            ((LEDataOutputStream) dout).close();
-        else
-            ((DataOutputStream) dout).close();
+            VoxelCodec.encode(channel, hdr, this.data, stats);
 
+            if (stats != null)
+            {
+                stats.update(hdr);
+                this.statistics = stats;
+                if (patch)
+                {
+                    // finish the voxel member before going back to the header member
+                    channel.close();
+                    os.close();
+                    VoxelCodec.writeFully(fos.getChannel().position(0), ByteBuffer.wrap(NiftiWriter.storedMember(encodeHeader(hdr))));
+                }
+                else
+                    VoxelCodec.writeFully(fos.getChannel().position(0), ByteBuffer.wrap(hdr.encodeHeader()));
+            }
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+                if (os != null)
+                    os.close();
+            }
+            finally
+            {
+                fos.close();
+            }
+        }
+
+        if (probe != null)
+        {
+            // the work includes closing the streams, which compresses and writes the last blocks
+            probe.workNanos = System.nanoTime() - start;
+            probe.finish();
+        }
         return;
     }
 }
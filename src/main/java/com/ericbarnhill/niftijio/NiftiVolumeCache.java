@@ -0,0 +1,241 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Least-recently-used cache of volumes read from files, bounded by the bytes of their voxels.
+ * <p/>
+ * Volumes are keyed by the canonical path of the file together with its size and modification
+ * time, so a file that changes is read again.  Concurrent requests for a file that is being read
+ * wait for that read instead of starting their own.  When the voxels of the cached volumes exceed
+ * the budget, the least recently used volumes are evicted, and a volume larger than the whole
+ * budget is returned without being cached.
+ * <p/>
+ * The same volume is returned to every caller, so it must not be modified.
+ */
+public class NiftiVolumeCache
+{
+    private static final class Key
+    {
+        final String path;
+        final long size;
+        final long modified;
+
+        Key(String path, long size, long modified)
+        {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return path.equals(k.path) && size == k.size && modified == k.modified;
+        }
+
+        public int hashCode()
+        {
+            return 31 * (31 * path.hashCode() + (int) (size ^ (size >>> 32))) + (int) (modified ^ (modified >>> 32));
+        }
+    }
+
+    private static final class Entry
+    {
+        final FutureTask<NiftiVolume> task;
+        /** The bytes of the voxels, or -1 while the volume is read. */
+        long bytes = -1;
+
+        Entry(FutureTask<NiftiVolume> task)
+        {
+            this.task = task;
+        }
+    }
+
+    private final long maxBytes;
+    private final boolean lazy;
+
+    // guarded by this, in order of access
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final Map<String, Key> current = new HashMap<String, Key>();
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /** Create a cache of volumes read with the scaling applied.
+     *
+     * @param maxBytes the largest number of bytes of voxels to keep
+     */
+    public NiftiVolumeCache(long maxBytes)
+    {
+        this(maxBytes, false);
+    }
+
+    /** Create a cache.
+     *
+     * @param maxBytes the largest number of bytes of voxels to keep
+     * @param lazy whether to read volumes with lazy scaling, see {@link NiftiVolume#read(String, int, boolean)}
+     */
+    public NiftiVolumeCache(long maxBytes, boolean lazy)
+    {
+        this.maxBytes = maxBytes;
+        this.lazy = lazy;
+    }
+
+    /** Get the volume of a file, reading it if it is not cached or has changed since it was read.
+     *
+     * @param filename the name of the file
+     * @return the volume, shared with other callers
+     * @throws IOException if the file cannot be read
+     */
+    public NiftiVolume get(final String filename) throws IOException
+    {
+        File file = new File(filename);
+        Key key = new Key(file.getCanonicalPath(), file.length(), file.lastModified());
+
+        Entry entry;
+        boolean load = false;
+        synchronized (this)
+        {
+            entry = entries.get(key);
+            if (entry != null)
+            {
+                hits++;
+            }
+            else
+            {
+                misses++;
+                Key old = current.put(key.path, key);
+                if (old != null)
+                    remove(old);
+
+                entry = new Entry(new FutureTask<NiftiVolume>(new Callable<NiftiVolume>()
+                {
+                    public NiftiVolume call() throws IOException
+                    {
+                        return NiftiVolume.read(filename, Runtime.getRuntime().availableProcessors(), lazy);
+                    }
+                }));
+                entries.put(key, entry);
+                load = true;
+            }
+        }
+
+        if (load)
+        {
+            entry.task.run();
+            loaded(key, entry);
+        }
+
+        try
+        {
+            return entry.task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + filename);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException("failed to read " + filename, cause);
+        }
+    }
+
+    /** Account for a volume that has been read, or drop it if the read failed or it does not fit. */
+    private synchronized void loaded(Key key, Entry entry)
+    {
+        if (entries.get(key) != entry)
+            return;
+
+        NiftiVolume volume;
+        try
+        {
+            volume = entry.task.get();
+        }
+        catch (Exception e)
+        {
+            remove(key);
+            return;
+        }
+
+        long n = volume.data.storage().sizeInBytes();
+        if (n > maxBytes)
+        {
+            remove(key);
+            return;
+        }
+
+        entry.bytes = n;
+        bytes += n;
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext())
+        {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getValue().bytes < 0 || e.getValue() == entry)
+                continue;
+
+            bytes -= e.getValue().bytes;
+            if (current.get(e.getKey().path) == e.getKey())
+                current.remove(e.getKey().path);
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(Key key)
+    {
+        Entry entry = entries.remove(key);
+        if (entry != null && entry.bytes > 0)
+            bytes -= entry.bytes;
+        if (current.get(key.path) == key)
+            current.remove(key.path);
+    }
+
+    /** Remove the volume of a file from the cache, if it is cached. */
+    public synchronized void invalidate(String filename) throws IOException
+    {
+        Key key = current.get(new File(filename).getCanonicalPath());
+        if (key != null)
+            remove(key);
+    }
+
+    /** Remove all volumes from the cache. */
+    public synchronized void clear()
+    {
+        entries.clear();
+        current.clear();
+        bytes = 0;
+    }
+
+    /** The number of volumes cached or being read. */
+    public synchronized int size() {return entries.size();}
+    /** The number of bytes of voxels of the cached volumes. */
+    public synchronized long bytes() {return bytes;}
+    public long maxBytes() {return maxBytes;}
+    /** The number of requests answered by a cached volume or one being read. */
+    public synchronized long hits() {return hits;}
+    /** The number of requests that read a file. */
+    public synchronized long misses() {return misses;}
+    /** The number of volumes evicted to stay within the budget. */
+    public synchronized long evictions() {return evictions;}
+}
@@ -0,0 +1,222 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming writer that appends 3D frames to a NIFTI file, the counterpart of {@link NiftiFrameReader}.
+ * <p/>
+ * The header is written when the file is opened and every call to {@link #append} encodes its
+ * frames at once, so only the frame being written is held in memory.  {@link #close()} stores the
+ * number of frames in dim[4] and writes the header again over the first one.  A compressed file
+ * starts with a gzip member holding the header in stored deflate blocks, whose size does not
+ * depend on its contents, followed by a member holding the voxels, so the header can be replaced
+ * in place as well; readers of gzip files treat the two members as a single stream.
+ */
+public class NiftiWriter implements Closeable
+{
+    /** The largest number of bytes in a stored deflate block. */
+    private static final int STORED_BLOCK = 0xffff;
+
+    public final NiftiHeader header;
+
+    private final FileOutputStream fos;
+    private final WritableByteChannel channel;
+    private final boolean compressed;
+    private final VoxelStatistics stats;
+    private final IoProbe probe;
+    private final int nx, ny, nz;
+    private int frames = 0;
+    private boolean closed = false;
+
+    private NiftiWriter(NiftiHeader hdr, FileOutputStream fos, int threads, int level, VoxelStatistics stats, IoProbe probe) throws IOException
+    {
+        this.header = hdr;
+        this.fos = fos;
+        this.stats = stats;
+        this.probe = probe;
+        this.compressed = hdr.filename.endsWith(".gz");
+
+        int[] dims = NiftiVolume.dimensions(hdr);
+        this.nx = dims[0];
+        this.ny = dims[1];
+        this.nz = dims[2];
+
+        byte[] hbytes = NiftiVolume.encodeHeader(hdr);
+        if (compressed)
+        {
+            OutputStream file = probe != null ? probe.file(fos) : fos;
+            file.write(storedMember(hbytes));
+            if (probe != null)
+                probe.dataBytes += hbytes.length;
+
+            // the voxels follow in a member of their own, which must not close the file when it ends
+            OutputStream shield = unclosed(file);
+            OutputStream os;
+            if (threads > 1)
+                os = new ParallelGZIPOutputStream(shield, threads, level);
+            else
+                os = new LevelGZIPOutputStream(shield, VoxelCodec.CHUNK_BYTES, level);
+            this.channel = probe != null ? probe.deflated(Channels.newChannel(os)) : Channels.newChannel(os);
+        }
+        else
+        {
+            this.channel = probe != null ? probe.file(fos.getChannel()) : fos.getChannel();
+            VoxelCodec.writeFully(channel, ByteBuffer.wrap(hbytes));
+        }
+    }
+
+    /** Open a file for writing frame by frame, compressing it if its name ends with .gz.
+     *
+     * @param filename the name of the file to write
+     * @param hdr the header of the file, whose sizes along x, y and z must match the frames and
+     *            whose dim[4] is replaced by the number of frames on close
+     * @return a writer that holds no frames
+     * @throws IOException
+     */
+    public static NiftiWriter open(String filename, NiftiHeader hdr) throws IOException
+    {
+        return open(filename, hdr, 1, Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /** Open a file for writing frame by frame, accumulating statistics of the voxels while they are encoded.
+     *
+     * The range of the statistics is stored in cal_min, cal_max, glmin and glmax of the header that is
+     * written on close, see {@link NiftiVolume#write(String, int, int, VoxelStatistics)}.
+     *
+     * @param filename the name of the file to write
+     * @param hdr the header of the file
+     * @param threads the number of threads compressing the output
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @param stats the statistics to fill, which may have a histogram, or null for none
+     * @return a writer that holds no frames
+     * @throws IOException
+     */
+    public static NiftiWriter open(String filename, NiftiHeader hdr, int threads, int level, VoxelStatistics stats) throws IOException
+    {
+        VoxelCodec.check(VoxelCodec.encoding(hdr), "write");
+        hdr.filename = filename;
+
+        IoProbe probe = IoProbe.start(NiftiEvent.Kind.WRITE, filename);
+        FileOutputStream fos = new FileOutputStream(filename);
+        try
+        {
+            return new NiftiWriter(hdr, fos, threads, level, stats, probe);
+        }
+        catch (IOException e)
+        {
+            fos.close();
+            throw e;
+        }
+    }
+
+    /** A stream writing to another that is flushed rather than closed when the stream is closed. */
+    static OutputStream unclosed(OutputStream os)
+    {
+        return new FilterOutputStream(os)
+        {
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+            }
+
+            public void close() throws IOException
+            {
+                flush();
+            }
+        };
+    }
+
+    /** A gzip member holding data in stored deflate blocks, whose size only depends on the length of the data. */
+    static byte[] storedMember(byte[] data)
+    {
+        int blocks = Math.max((data.length + STORED_BLOCK - 1) / STORED_BLOCK, 1);
+        ByteBuffer member = ByteBuffer.allocate(ParallelGZIPOutputStream.HEADER.length + 5 * blocks + data.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+        member.put(ParallelGZIPOutputStream.HEADER);
+        for (int off = 0, b = 0; b < blocks; b++)
+        {
+            int len = Math.min(STORED_BLOCK, data.length - off);
+            member.put((byte) (b == blocks - 1 ? 1 : 0));
+            member.putShort((short) len);
+            member.putShort((short) ~len);
+            member.put(data, off, len);
+            off += len;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        member.putInt((int) crc.getValue());
+        member.putInt(data.length);
+        return member.array();
+    }
+
+    /** Append the frames of an array, all volumes along its fourth dimension in order.
+     *
+     * @param frames an array whose sizes along x, y and z match the header
+     * @throws IOException
+     */
+    public void append(FourDimensionalArray frames) throws IOException
+    {
+        if (closed)
+            throw new IOException("writer of " + header.filename + " is closed");
+        if (frames.sizeX() != nx || frames.sizeY() != ny || frames.sizeZ() != nz)
+            throw new IOException("header describes frames of " + nx + "x" + ny + "x" + nz + " voxels but the data holds "
+                    + frames.sizeX() + "x" + frames.sizeY() + "x" + frames.sizeZ());
+        if (header.version == 1 && (long) this.frames + frames.dimension() > Short.MAX_VALUE)
+            throw new IOException("a NIfTI-1 header holds at most " + Short.MAX_VALUE + " frames, use NIfTI-2 for more");
+
+        long start = probe != null ? System.nanoTime() : 0;
+        VoxelCodec.encode(channel, header, frames, stats);
+        if (probe != null)
+            probe.workNanos += System.nanoTime() - start;
+        this.frames += frames.dimension();
+    }
+
+    /** The number of frames appended so far. */
+    public int frames()
+    {
+        return frames;
+    }
+
+    /** Finish the voxels and write the header with the number of frames and the statistics, if any. */
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        long start = probe != null ? System.nanoTime() : 0;
+        try
+        {
+            if (compressed)
+                channel.close();
+            if (probe != null)
+                probe.workNanos += System.nanoTime() - start;
+
+            header.setDim(4, frames);
+            if (header.getDim(0) < 4 && frames > 1)
+                header.setDim(0, 4);
+            if (stats != null)
+                stats.update(header);
+
+            byte[] hbytes = NiftiVolume.encodeHeader(header);
+            VoxelCodec.writeFully(fos.getChannel().position(0), ByteBuffer.wrap(compressed ? storedMember(hbytes) : hbytes));
+        }
+        finally
+        {
+            fos.close();
+        }
+
+        if (probe != null)
+            probe.finish();
+    }
+}
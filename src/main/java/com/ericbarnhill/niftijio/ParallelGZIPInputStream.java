@@ -0,0 +1,309 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Gzip input stream that inflates the members of a block gzip (BGZF) file concurrently.
+ * <p/>
+ * A BGZF file is a series of independent gzip members, each recording its compressed size in a
+ * 'BC' extra field, as written by bgzip or by {@link ParallelGZIPOutputStream} in blocked mode.
+ * The calling thread reads whole members and hands them to a thread pool, and the inflated blocks
+ * are returned in order.  Use {@link #open(InputStream, int)} to fall back to a sequential
+ * GZIPInputStream for ordinary gzip files.
+ */
+public class ParallelGZIPInputStream extends InputStream
+{
+    /** The size of the fixed part of a gzip member header. */
+    private static final int HEADER_SIZE = 12;
+
+    /** The largest uncompressed size of a BGZF member. */
+    private static final int BGZF_BLOCK_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int pending;
+    private final Deque<Future<byte[]>> queue = new ArrayDeque<Future<byte[]>>();
+
+    private byte[] block = new byte[0];
+    private int pos = 0;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    /**
+     * @param in a stream positioned at the start of a BGZF file
+     * @param threads the number of threads inflating members
+     */
+    public ParallelGZIPInputStream(InputStream in, int threads)
+    {
+        this(in, Executors.newFixedThreadPool(Math.max(threads, 1), daemons()), true, Math.max(threads, 1));
+    }
+
+    /**
+     * @param in a stream positioned at the start of a BGZF file
+     * @param executor the executor inflating members, which is not shut down by the stream
+     * @param threads the number of threads of the executor used by the stream
+     */
+    public ParallelGZIPInputStream(InputStream in, ExecutorService executor, int threads)
+    {
+        this(in, executor, false, Math.max(threads, 1));
+    }
+
+    private ParallelGZIPInputStream(InputStream in, ExecutorService executor, boolean ownsExecutor, int threads)
+    {
+        this.in = in;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.pending = 4 * threads;
+    }
+
+    private static ThreadFactory daemons()
+    {
+        return new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "niftijio-inflate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /** Open a gzip stream, inflating in parallel if it is a BGZF file and more than one thread is requested.
+     *
+     * @param in the compressed stream
+     * @param threads the number of threads inflating members
+     * @return a stream of the uncompressed data
+     * @throws IOException
+     */
+    public static InputStream open(InputStream in, int threads) throws IOException
+    {
+        BufferedInputStream bis = new BufferedInputStream(in, 1 << 16);
+        if (threads > 1 && isBlocked(bis))
+            return new ParallelGZIPInputStream(bis, threads);
+        return new GZIPInputStream(bis, 1 << 16);
+    }
+
+    /** Check whether a stream starts with a BGZF member, leaving its position unchanged. */
+    public static boolean isBlocked(BufferedInputStream in) throws IOException
+    {
+        in.mark(HEADER_SIZE + 6);
+        try
+        {
+            byte[] header = new byte[HEADER_SIZE + 6];
+            int n = 0;
+            while (n < header.length)
+            {
+                int r = in.read(header, n, header.length - n);
+                if (r < 0)
+                    return false;
+                n += r;
+            }
+
+            return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8 && (header[3] & 4) != 0
+                    && header[12] == 'B' && header[13] == 'C' && short16(header, 14) == 2;
+        }
+        finally
+        {
+            in.reset();
+        }
+    }
+
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+        if (len == 0)
+            return 0;
+
+        while (pos == block.length)
+        {
+            fill();
+            if (queue.isEmpty())
+                return -1;
+            block = take(queue.removeFirst());
+            pos = 0;
+        }
+
+        int n = Math.min(len, block.length - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    public int available()
+    {
+        return block.length - pos;
+    }
+
+    /** Read members ahead of the consumer until enough are being inflated. */
+    private void fill() throws IOException
+    {
+        while (!eof && queue.size() < pending)
+        {
+            final byte[] member = readMember();
+            if (member == null)
+            {
+                eof = true;
+                break;
+            }
+
+            queue.add(executor.submit(new Callable<byte[]>()
+            {
+                public byte[] call() throws IOException
+                {
+                    return inflate(member);
+                }
+            }));
+        }
+    }
+
+    /** Read one complete member, or return null at the end of the stream. */
+    private byte[] readMember() throws IOException
+    {
+        byte[] header = new byte[HEADER_SIZE];
+        int n = 0;
+        while (n < HEADER_SIZE)
+        {
+            int r = in.read(header, n, HEADER_SIZE - n);
+            if (r < 0)
+            {
+                if (n == 0)
+                    return null;
+                throw new EOFException("truncated gzip member header");
+            }
+            n += r;
+        }
+
+        if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || (header[3] & 4) == 0)
+            throw new IOException("not a BGZF member");
+
+        int xlen = short16(header, 10);
+        byte[] extra = new byte[xlen];
+        VoxelCodec.readFully(in, extra, xlen);
+
+        int bsize = -1;
+        for (int i = 0; i + 4 <= xlen; i += 4 + short16(extra, i + 2))
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && short16(extra, i + 2) == 2)
+                bsize = short16(extra, i + 4);
+
+        if (bsize < 0)
+            throw new IOException("gzip member has no BGZF block size");
+
+        int remaining = bsize + 1 - HEADER_SIZE - xlen;
+        if (remaining < 8)
+            throw new IOException("invalid BGZF block size " + bsize);
+
+        byte[] member = new byte[remaining];
+        VoxelCodec.readFully(in, member, remaining);
+        return member;
+    }
+
+    /** Inflate the deflate data and check the trailer of a member read by {@link #readMember()}. */
+    private static byte[] inflate(byte[] member) throws IOException
+    {
+        int clen = member.length - 8;
+        long crc = int32(member, clen) & 0xffffffffL;
+        int isize = int32(member, clen + 4);
+        if (isize < 0 || isize > BGZF_BLOCK_SIZE)
+            throw new IOException("invalid BGZF uncompressed size " + isize);
+
+        byte[] out = new byte[isize];
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(member, 0, clen);
+            int n = 0;
+            while (n < isize && !inflater.finished())
+            {
+                int r = inflater.inflate(out, n, isize - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("truncated BGZF block");
+                n += r;
+            }
+            if (n != isize)
+                throw new IOException("BGZF block size mismatch");
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("corrupt BGZF block", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+
+        CRC32 check = new CRC32();
+        check.update(out, 0, isize);
+        if (check.getValue() != crc)
+            throw new IOException("BGZF block CRC mismatch");
+
+        return out;
+    }
+
+    private static byte[] take(Future<byte[]> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while inflating");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("failed to inflate block", e.getCause());
+        }
+    }
+
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        for (Future<byte[]> future : queue)
+            future.cancel(true);
+        queue.clear();
+        if (ownsExecutor)
+            executor.shutdownNow();
+        in.close();
+    }
+
+    static int short16(byte[] b, int off)
+    {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    static int int32(byte[] b, int off)
+    {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+    }
+}
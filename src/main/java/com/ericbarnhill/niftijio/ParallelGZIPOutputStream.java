@@ -0,0 +1,328 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream that compresses blocks of input concurrently, in the manner of pigz.
+ * <p/>
+ * The input is cut into blocks of {@link #BLOCK_SIZE} bytes which are deflated on a thread pool.
+ * Each block is primed with the last 32 KB of the previous one and ends with a sync flush, so the
+ * blocks join into a single deflate stream and the output is an ordinary gzip file that any gunzip
+ * can read.  The compression ratio is within a fraction of a percent of a sequential compressor.
+ * <p/>
+ * In blocked mode the stream writes a BGZF file instead: blocks of {@link #BGZF_BLOCK_SIZE} bytes are
+ * compressed independently into separate gzip members that record their compressed size, which
+ * lets {@link ParallelGZIPInputStream} inflate them in parallel as well.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream
+{
+    /** The number of input bytes compressed by one task. */
+    public static final int BLOCK_SIZE = 1 << 17;
+
+    /** The number of input bytes in one member of a BGZF file. */
+    public static final int BGZF_BLOCK_SIZE = 0xff00;
+
+    /** The largest member of a BGZF file. */
+    private static final int BGZF_MEMBER_SIZE = 1 << 16;
+
+    /** The size of the header and trailer of a BGZF member. */
+    private static final int BGZF_OVERHEAD = 26;
+
+    /** The empty member marking the end of a BGZF file. */
+    private static final byte[] BGZF_EOF = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    /** The size of the deflate window, which is carried over from block to block. */
+    private static final int DICTIONARY_SIZE = 1 << 15;
+
+    /** The header of a gzip member without optional fields, which must not be modified. */
+    static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int level;
+    private final int pending;
+    private final boolean blocked;
+    private final Deque<Future<byte[]>> queue = new ArrayDeque<Future<byte[]>>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block;
+    private int length = 0;
+    private byte[] previous = null;
+    private long total = 0;
+    private boolean closed = false;
+
+    /**
+     * @param out the stream receiving the compressed data
+     * @param threads the number of threads compressing blocks
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @throws IOException
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int threads, int level) throws IOException
+    {
+        this(out, threads, level, false);
+    }
+
+    /**
+     * @param out the stream receiving the compressed data
+     * @param threads the number of threads compressing blocks
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @param blocked whether to write a BGZF file of independent members
+     * @throws IOException
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int threads, int level, boolean blocked) throws IOException
+    {
+        this(out, Executors.newFixedThreadPool(Math.max(threads, 1), daemons()), true, Math.max(threads, 1), level, blocked);
+    }
+
+    /**
+     * @param out the stream receiving the compressed data
+     * @param executor the executor compressing blocks, which is not shut down by the stream
+     * @param threads the number of threads of the executor used by the stream
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @throws IOException
+     */
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int threads, int level) throws IOException
+    {
+        this(out, executor, threads, level, false);
+    }
+
+    /**
+     * @param out the stream receiving the compressed data
+     * @param executor the executor compressing blocks, which is not shut down by the stream
+     * @param threads the number of threads of the executor used by the stream
+     * @param level the deflate compression level, from 0 to 9 or -1 for the default
+     * @param blocked whether to write a BGZF file of independent members
+     * @throws IOException
+     */
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int threads, int level, boolean blocked) throws IOException
+    {
+        this(out, executor, false, Math.max(threads, 1), level, blocked);
+    }
+
+    private ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, boolean ownsExecutor, int threads, int level, boolean blocked) throws IOException
+    {
+        super(out);
+
+        if (level < -1 || level > 9)
+            throw new IllegalArgumentException("invalid compression level: " + level);
+
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.level = level;
+        this.pending = 2 * threads;
+        this.blocked = blocked;
+        this.block = new byte[blocked ? BGZF_BLOCK_SIZE : BLOCK_SIZE];
+
+        if (!blocked)
+            out.write(HEADER);
+    }
+
+    private static ThreadFactory daemons()
+    {
+        return new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "niftijio-deflate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+
+        if (!blocked)
+        {
+            crc.update(b, off, len);
+            total += len;
+        }
+
+        while (len > 0)
+        {
+            int n = Math.min(len, block.length - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+
+            if (length == block.length)
+                submit(false);
+        }
+    }
+
+    /** Compress the current block and start a new one. */
+    private void submit(boolean last) throws IOException
+    {
+        final byte[] input = block;
+        final int count = length;
+        final byte[] dictionary = previous;
+        final boolean finish = last;
+
+        queue.add(executor.submit(new Callable<byte[]>()
+        {
+            public byte[] call()
+            {
+                if (blocked)
+                    return member(input, count);
+                return deflate(input, count, dictionary, finish, level);
+            }
+        }));
+
+        previous = input;
+        block = new byte[block.length];
+        length = 0;
+
+        while (queue.size() > (last ? 0 : pending))
+            out.write(take(queue.removeFirst()));
+    }
+
+    /** Compress a block into a complete BGZF member. */
+    private byte[] member(byte[] input, int count)
+    {
+        byte[] data = deflate(input, count, null, true, level);
+        if (data.length > BGZF_MEMBER_SIZE - BGZF_OVERHEAD)
+            data = deflate(input, count, null, true, Deflater.NO_COMPRESSION);
+
+        CRC32 check = new CRC32();
+        check.update(input, 0, count);
+
+        byte[] member = new byte[data.length + BGZF_OVERHEAD];
+        System.arraycopy(BGZF_EOF, 0, member, 0, 16);
+        int bsize = member.length - 1;
+        member[16] = (byte) bsize;
+        member[17] = (byte) (bsize >>> 8);
+        System.arraycopy(data, 0, member, 18, data.length);
+        writeInt(member, member.length - 8, (int) check.getValue());
+        writeInt(member, member.length - 4, count);
+        return member;
+    }
+
+    private static byte[] deflate(byte[] input, int count, byte[] dictionary, boolean finish, int level)
+    {
+        Deflater deflater = new Deflater(level, true);
+        try
+        {
+            if (dictionary != null)
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            deflater.setInput(input, 0, count);
+
+            byte[] output = new byte[count + count / 16 + 64];
+            int size = 0;
+
+            if (finish)
+            {
+                deflater.finish();
+                while (!deflater.finished())
+                {
+                    if (size == output.length)
+                        output = Arrays.copyOf(output, 2 * output.length);
+                    size += deflater.deflate(output, size, output.length - size);
+                }
+            }
+            else
+            {
+                // a sync flush is complete once it leaves room in the output buffer
+                while (true)
+                {
+                    size += deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+                    if (size < output.length)
+                        break;
+                    output = Arrays.copyOf(output, 2 * output.length);
+                }
+            }
+
+            return Arrays.copyOf(output, size);
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static byte[] take(Future<byte[]> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("failed to compress block", e.getCause());
+        }
+    }
+
+    /** Compress the remaining input, write the gzip trailer and close the underlying stream. */
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+
+        try
+        {
+            if (!blocked || length > 0)
+                submit(true);
+            while (!queue.isEmpty())
+                out.write(take(queue.removeFirst()));
+            closed = true;
+
+            if (blocked)
+            {
+                out.write(BGZF_EOF);
+            }
+            else
+            {
+                byte[] trailer = new byte[8];
+                writeInt(trailer, 0, (int) crc.getValue());
+                writeInt(trailer, 4, (int) total);
+                out.write(trailer);
+            }
+            out.flush();
+        }
+        finally
+        {
+            closed = true;
+            for (Future<byte[]> future : queue)
+                future.cancel(true);
+            queue.clear();
+            if (ownsExecutor)
+                executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    private static void writeInt(byte[] b, int off, int v)
+    {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+}
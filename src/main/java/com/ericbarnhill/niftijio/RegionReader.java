@@ -0,0 +1,211 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decoder for a box of voxels of a NIFTI file.
+ * <p/>
+ * The byte range of every row of the box is computed from the header, and rows that are adjacent
+ * in the file are merged into runs.  Each run is fetched from a {@link Source}, which reads at
+ * arbitrary positions of an uncompressed file, skips forward through a compressed stream, or inflates
+ * a compressed file from the nearest checkpoint of a {@link GZipIndex}.
+ */
+final class RegionReader
+{
+    /** Uncompressed file content that can be read at increasing positions. */
+    interface Source
+    {
+        /** Read len bytes starting at an absolute position of the uncompressed file into buffer. */
+        void read(long position, ByteBuffer buffer, int len) throws IOException;
+    }
+
+    /** A source reading at any position of an uncompressed file. */
+    static final class ChannelSource implements Source
+    {
+        private final FileChannel channel;
+
+        ChannelSource(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        public void read(long position, ByteBuffer buffer, int len) throws IOException
+        {
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit(len);
+            while (buffer.hasRemaining())
+            {
+                int n = channel.read(buffer, position + buffer.position());
+                if (n < 0)
+                    throw new EOFException("unexpected end of voxel data");
+            }
+            ((Buffer) buffer).flip();
+        }
+    }
+
+    /** A source skipping forward through a stream, such as an inflated gzip file. */
+    static final class StreamSource implements Source
+    {
+        private final InputStream is;
+        private long position;
+
+        /**
+         * @param is the uncompressed stream
+         * @param position the position of the stream within the uncompressed file
+         */
+        StreamSource(InputStream is, long position)
+        {
+            this.is = is;
+            this.position = position;
+        }
+
+        public void read(long position, ByteBuffer buffer, int len) throws IOException
+        {
+            if (position < this.position)
+                throw new IOException("cannot read backwards in a stream");
+
+            VoxelCodec.skipFully(is, position - this.position);
+            VoxelCodec.readFully(is, buffer.array(), len);
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit(len);
+            this.position = position + len;
+        }
+    }
+
+    /** A source inflating a gzip file from the checkpoints of an index. */
+    static final class IndexSource implements Source, Closeable
+    {
+        private final GZipIndex index;
+        private InputStream is = null;
+        private long position;
+
+        IndexSource(GZipIndex index)
+        {
+            this.index = index;
+        }
+
+        public void read(long position, ByteBuffer buffer, int len) throws IOException
+        {
+            // restart at a checkpoint unless the current stream is closer to the position
+            if (is == null || position < this.position || index.checkpoint(position) > this.position)
+            {
+                close();
+                is = index.open(position);
+                this.position = position;
+            }
+
+            VoxelCodec.skipFully(is, position - this.position);
+            VoxelCodec.readFully(is, buffer.array(), len);
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit(len);
+            this.position = position + len;
+        }
+
+        public void close() throws IOException
+        {
+            if (is != null)
+                is.close();
+            is = null;
+        }
+    }
+
+    private RegionReader()
+    {
+    }
+
+    /** Check a region against the voxel array described by a header.
+     *
+     * @param dims the array sizes along x, y, z and the fourth dimension
+     * @param bounds the inclusive lower and exclusive upper bounds, x0, x1, y0, y1, z0, z1, t0, t1
+     */
+    static void check(int[] dims, int[] bounds)
+    {
+        for (int a = 0; a < 4; a++)
+        {
+            int lo = bounds[2 * a];
+            int hi = bounds[2 * a + 1];
+            if (lo < 0 || hi > dims[a] || lo >= hi)
+                throw new IllegalArgumentException("invalid range [" + lo + ", " + hi + ") for axis " + a + " of size " + dims[a]);
+        }
+    }
+
+    /** Decode a region of a volume.
+     *
+     * @param hdr the header of the file
+     * @param src the voxel source, addressed by position in the uncompressed file
+     * @param bounds the inclusive lower and exclusive upper bounds, x0, x1, y0, y1, z0, z1, t0, t1
+     * @return the voxels of the region
+     * @throws IOException
+     */
+    static FourDimensionalArray read(NiftiHeader hdr, Source src, int[] bounds) throws IOException
+    {
+        VoxelCodec.check(hdr.datatype, "read");
+
+        int[] dims = NiftiVolume.dimensions(hdr);
+        check(dims, bounds);
+
+        int nx = dims[0], ny = dims[1], nz = dims[2];
+        int x0 = bounds[0], y0 = bounds[2], z0 = bounds[4], t0 = bounds[6];
+        int rx = bounds[1] - x0, ry = bounds[3] - y0, rz = bounds[5] - z0, rt = bounds[7] - t0;
+
+        FourDimensionalArray out = new FourDimensionalArray(rx, ry, rz, rt, VoxelStorage.storageType(hdr));
+        VoxelStorage dst = out.storage();
+
+        short datatype = hdr.datatype;
+        int bytes = VoxelCodec.bytesPerValue(datatype);
+        double slope = VoxelCodec.slope(hdr);
+        double inter = hdr.scl_inter;
+        long base = hdr.getVoxOffset();
+        ByteBuffer buffer = VoxelCodec.buffer(hdr);
+        int capacity = VoxelCodec.CHUNK_BYTES / bytes;
+
+        // the pending run of values, contiguous both in the file and in the region
+        long runStart = -1;
+        long runIndex = 0;
+        long runCount = 0;
+        long index = 0;
+
+        for (int t = 0; t < rt; t++)
+            for (int z = 0; z < rz; z++)
+                for (int y = 0; y < ry; y++)
+                {
+                    long start = ((((long) (t0 + t) * nz + z0 + z) * ny + y0 + y) * nx) + x0;
+                    if (runCount > 0 && start == runStart + runCount)
+                    {
+                        runCount += rx;
+                    }
+                    else
+                    {
+                        flush(src, buffer, dst, datatype, slope, inter, base, bytes, capacity, runStart, runIndex, runCount);
+                        runStart = start;
+                        runIndex = index;
+                        runCount = rx;
+                    }
+                    index += rx;
+                }
+
+        flush(src, buffer, dst, datatype, slope, inter, base, bytes, capacity, runStart, runIndex, runCount);
+
+        return out;
+    }
+
+    private static void flush(Source src, ByteBuffer buffer, VoxelStorage dst, short datatype, double slope, double inter,
+            long base, int bytes, int capacity, long start, long index, long count) throws IOException
+    {
+        while (count > 0)
+        {
+            int n = (int) Math.min(count, capacity);
+            src.read(base + start * bytes, buffer, n * bytes);
+            dst.decode(buffer, datatype, slope, inter, index, n);
+            start += n;
+            index += n;
+            count -= n;
+        }
+    }
+}
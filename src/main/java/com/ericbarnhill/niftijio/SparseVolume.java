@@ -0,0 +1,301 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Four-dimensional array that stores only the voxels inside a mask.
+ * <p/>
+ * The mask is a bitset over the voxels of one volume, x fastest, with the number of set bits before
+ * each word kept alongside it, so the position of a voxel among the stored ones is a lookup and a
+ * bit count.  The values of the voxels in the mask are packed volume after volume in a
+ * {@link VoxelStorage}, and voxels outside of the mask read as a stored zero.
+ * <p/>
+ * Sparse volumes are made from a {@link FourDimensionalArray}, or read frame by frame with
+ * {@link NiftiVolume#readSparse} so the full volume is never held in memory, and are expanded
+ * again with {@link #toLinear()} or {@link #write(String)}.
+ */
+public class SparseVolume
+{
+    /** Receives the voxels of the mask, see {@link #forEach(Visitor)}. */
+    public interface Visitor
+    {
+        /** Visit a voxel, where index is its position among the voxels of the mask. */
+        void visit(int x, int y, int z, long index);
+    }
+
+    /** The number of voxels copied out of the storage at once, a multiple of the bits in a word. */
+    private static final int BLOCK = 1 << 12;
+
+    /** The header written with the voxels, which describes the full volume. */
+    public NiftiHeader header;
+
+    private final VoxelStorage values;
+    private final int nx, ny, nz, dim;
+    private final long[] words;
+    // the number of voxels of the mask in the words before each word, and in all of them at the end
+    private final long[] ranks;
+    private final long count;
+    private boolean scaled = false;
+    private double slope = 1, inter = 0;
+
+    private SparseVolume(NiftiHeader hdr, int nx, int ny, int nz, int dim, long[] words, short datatype)
+    {
+        this.header = hdr;
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.dim = dim;
+        this.words = words;
+        this.ranks = new long[words.length + 1];
+        for (int w = 0; w < words.length; w++)
+            ranks[w + 1] = ranks[w] + Long.bitCount(words[w]);
+        this.count = ranks[words.length];
+        this.values = VoxelStorage.create(datatype, count * dim);
+    }
+
+    /** Copy the voxels of an array that are not zero in any of its volumes, keeping its datatype and scaling. */
+    public SparseVolume(FourDimensionalArray src)
+    {
+        this(src, src);
+    }
+
+    /** Copy the voxels of an array inside a mask, keeping its datatype and scaling.
+     *
+     * @param mask an array whose first volume is not zero inside the mask, after its scaling, or src
+     *             itself to keep the voxels whose stored values are not zero in any volume
+     */
+    public SparseVolume(FourDimensionalArray src, FourDimensionalArray mask)
+    {
+        this(new NiftiHeader(src.sizeX(), src.sizeY(), src.sizeZ(), src.dimension()), src.sizeX(), src.sizeY(), src.sizeZ(), src.dimension(),
+                mask(src, mask), src.datatype());
+        setScaling(src.slope(), src.inter());
+        header.setDatatype(src.datatype());
+        header.scl_slope = (float) slope;
+        header.scl_inter = (float) inter;
+
+        long voxels = (long) nx * ny * nz;
+        for (int d = 0; d < dim; d++)
+            pack(src.storage(), d * voxels, d);
+    }
+
+    /** Read the voxels of a file inside a mask, one frame at a time.
+     *
+     * @param mask an array whose first volume is not zero inside the mask
+     */
+    static SparseVolume read(String filename, FourDimensionalArray mask) throws IOException
+    {
+        NiftiFrameReader reader = NiftiFrameReader.open(filename);
+        try
+        {
+            SparseVolume out = null;
+            for (int d = 0; reader.hasNext(); d++)
+            {
+                FourDimensionalArray frame = reader.next();
+                if (out == null)
+                {
+                    check(frame, mask);
+                    out = new SparseVolume(reader.header, frame.sizeX(), frame.sizeY(), frame.sizeZ(), reader.frames(), bits(mask, 1, true), frame.datatype());
+                }
+                out.pack(frame.storage(), 0, d);
+            }
+            if (out == null)
+                throw new IOException("no frames in " + filename);
+            return out;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static long[] mask(FourDimensionalArray src, FourDimensionalArray mask)
+    {
+        if (mask == src)
+            return bits(src, src.dimension(), false);
+        check(src, mask);
+        return bits(mask, 1, true);
+    }
+
+    private static void check(FourDimensionalArray src, FourDimensionalArray mask)
+    {
+        if (src.sizeX() != mask.sizeX() || src.sizeY() != mask.sizeY() || src.sizeZ() != mask.sizeZ())
+            throw new IllegalArgumentException("mask of " + mask.sizeX() + "x" + mask.sizeY() + "x" + mask.sizeZ()
+                    + " voxels does not match volumes of " + src.sizeX() + "x" + src.sizeY() + "x" + src.sizeZ());
+    }
+
+    /** The bitset of the voxels that are not zero in any of the first volumes of an array. */
+    private static long[] bits(FourDimensionalArray src, int volumes, boolean scale)
+    {
+        long voxels = (long) src.sizeX() * src.sizeY() * src.sizeZ();
+        if ((voxels + 63) >>> 6 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many voxels for a mask: " + voxels);
+
+        long[] words = new long[(int) ((voxels + 63) >>> 6)];
+        double slope = scale ? src.slope() : 1, inter = scale ? src.inter() : 0;
+        double[] block = new double[BLOCK];
+        for (int d = 0; d < volumes; d++)
+            for (long v = 0; v < voxels; v += BLOCK)
+            {
+                int m = (int) Math.min(BLOCK, voxels - v);
+                src.storage().get(d * voxels + v, block, 0, m);
+                for (int i = 0; i < m; i++)
+                    if (block[i] * slope + inter != 0)
+                        words[(int) ((v + i) >>> 6)] |= 1L << (v + i);
+            }
+        return words;
+    }
+
+    /** Copy the values of the mask from one volume in the linear layout into volume d. */
+    private void pack(VoxelStorage from, long start, int d)
+    {
+        long voxels = (long) nx * ny * nz;
+        double[] block = new double[BLOCK];
+        double[] packed = new double[BLOCK];
+        for (long v = 0; v < voxels; v += BLOCK)
+        {
+            int w0 = (int) (v >>> 6);
+            int w1 = Math.min(words.length, w0 + BLOCK / 64);
+            int n = (int) (ranks[w1] - ranks[w0]);
+            if (n == 0)
+                continue;
+
+            from.get(start + v, block, 0, (int) Math.min(BLOCK, voxels - v));
+            int k = 0;
+            for (int w = w0; w < w1; w++)
+                for (long bits = words[w]; bits != 0; bits &= bits - 1)
+                    packed[k++] = block[((w - w0) << 6) + Long.numberOfTrailingZeros(bits)];
+            values.set(d * count + ranks[w0], packed, 0, n);
+        }
+    }
+
+    /** Copy volume d into one volume in the linear layout, with zeros outside of the mask. */
+    private void unpack(VoxelStorage to, long start, int d)
+    {
+        long voxels = (long) nx * ny * nz;
+        double[] block = new double[BLOCK];
+        double[] packed = new double[BLOCK];
+        for (long v = 0; v < voxels; v += BLOCK)
+        {
+            int w0 = (int) (v >>> 6);
+            int w1 = Math.min(words.length, w0 + BLOCK / 64);
+            int n = (int) (ranks[w1] - ranks[w0]);
+            if (n == 0)
+                continue;
+
+            values.get(d * count + ranks[w0], packed, 0, n);
+            int m = (int) Math.min(BLOCK, voxels - v);
+            Arrays.fill(block, 0, m, 0);
+            int k = 0;
+            for (int w = w0; w < w1; w++)
+                for (long bits = words[w]; bits != 0; bits &= bits - 1)
+                    block[((w - w0) << 6) + Long.numberOfTrailingZeros(bits)] = packed[k++];
+            to.set(start + v, block, 0, m);
+        }
+    }
+
+    /** Expand the voxels into a linear array with the same datatype and scaling. */
+    public FourDimensionalArray toLinear()
+    {
+        FourDimensionalArray out = new FourDimensionalArray(nx, ny, nz, dim, values.datatype());
+        out.setScaling(slope, inter);
+
+        long voxels = (long) nx * ny * nz;
+        for (int d = 0; d < dim; d++)
+            unpack(out.storage(), d * voxels, d);
+        return out;
+    }
+
+    /** Write the full volume with the header, see {@link NiftiVolume#write(String)}. */
+    public void write(String filename) throws IOException
+    {
+        new NiftiVolume(header, toLinear()).write(filename);
+    }
+
+    /** The position of the voxel at x, y and z among the voxels of the mask, or -1 if it is outside of the mask. */
+    public long index(int x, int y, int z)
+    {
+        long v = ((long) z * ny + y) * nx + x;
+        long word = words[(int) (v >>> 6)];
+        long bit = 1L << v;
+        if ((word & bit) == 0)
+            return -1;
+        return ranks[(int) (v >>> 6)] + Long.bitCount(word & (bit - 1));
+    }
+
+    public boolean contains(int x, int y, int z)
+    {
+        long v = ((long) z * ny + y) * nx + x;
+        return (words[(int) (v >>> 6)] & (1L << v)) != 0;
+    }
+
+    /** Visit the voxels of the mask in the order of their index, x fastest. */
+    public void forEach(Visitor visitor)
+    {
+        for (int w = 0; w < words.length; w++)
+        {
+            long index = ranks[w];
+            for (long bits = words[w]; bits != 0; bits &= bits - 1)
+            {
+                long v = ((long) w << 6) + Long.numberOfTrailingZeros(bits);
+                int x = (int) (v % nx);
+                long yz = v / nx;
+                visitor.visit(x, (int) (yz % ny), (int) (yz / ny), index++);
+            }
+        }
+    }
+
+    /** The value of a voxel, which is the stored zero with the scaling applied outside of the mask. */
+    public double get(int x, int y, int z, int d)
+    {
+        long i = index(x, y, z);
+        double v = i < 0 ? 0 : values.get(d * count + i);
+        return scaled ? v * slope + inter : v;
+    }
+
+    /** Set the value of a voxel of the mask.
+     *
+     * @throws IllegalArgumentException if the voxel is outside of the mask
+     */
+    public void set(int x, int y, int z, int d, double val)
+    {
+        long i = index(x, y, z);
+        if (i < 0)
+            throw new IllegalArgumentException("voxel " + x + "," + y + "," + z + " is outside of the mask");
+        set(i, d, val);
+    }
+
+    /** The value of the voxel at an index of the mask. */
+    public double get(long index, int d)
+    {
+        double v = values.get(d * count + index);
+        return scaled ? v * slope + inter : v;
+    }
+
+    public void set(long index, int d, double val)
+    {
+        values.set(d * count + index, scaled ? (val - inter) / slope : val);
+    }
+
+    /** Scale the stored values when they are accessed as doubles, see {@link FourDimensionalArray#setScaling}. */
+    public void setScaling(double slope, double inter)
+    {
+        this.scaled = slope != 0 && (slope != 1 || inter != 0);
+        this.slope = scaled ? slope : 1;
+        this.inter = scaled ? inter : 0;
+    }
+
+    public boolean isScaled() {return scaled;}
+    public double slope() {return slope;}
+    public double inter() {return inter;}
+
+    /** The number of voxels in the mask. */
+    public long count() {return count;}
+    public int sizeX() {return nx;}
+    public int sizeY() {return ny;}
+    public int sizeZ() {return nz;}
+    public int dimension() {return dim;}
+    public short datatype() {return values.datatype();}
+    /** The storage of the values of the mask, volume after volume in the order of their index. */
+    public VoxelStorage storage() {return values;}
+}
@@ -0,0 +1,332 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Block decoder and encoder for the voxel section of NIFTI files.
+ * <p/>
+ * Voxels are read in chunks of {@link #CHUNK_BYTES} into a byte buffer with the byte order of the
+ * header, and each chunk is handed to the storage, which converts it with one loop specialized for
+ * the datatype instead of dispatching on the datatype for every voxel.  Encoding works the same way
+ * in reverse, filling a direct buffer that is written to a channel in a single call.
+ */
+final class VoxelCodec
+{
+    /** The number of bytes decoded at once. */
+    static final int CHUNK_BYTES = 1 << 18;
+
+    private VoxelCodec()
+    {
+    }
+
+    /** Check that voxels of a datatype can be decoded and encoded.
+     *
+     * @param datatype the NIFTI datatype
+     * @param action the operation to report in the error message
+     * @throws IOException if the datatype is not supported
+     */
+    static void check(short datatype, String action) throws IOException
+    {
+        switch (datatype)
+        {
+        case NiftiHeader.NIFTI_TYPE_INT8:
+        case NiftiHeader.NIFTI_TYPE_UINT8:
+        case NiftiHeader.NIFTI_TYPE_INT16:
+        case NiftiHeader.NIFTI_TYPE_UINT16:
+        case NiftiHeader.NIFTI_TYPE_INT32:
+        case NiftiHeader.NIFTI_TYPE_UINT32:
+        case NiftiHeader.NIFTI_TYPE_INT64:
+        case NiftiHeader.NIFTI_TYPE_UINT64:
+        case NiftiHeader.NIFTI_TYPE_FLOAT32:
+        case NiftiHeader.NIFTI_TYPE_FLOAT64:
+        case NiftiHeader.NIFTI_TYPE_COMPLEX64:
+            return;
+        default:
+            throw new IOException("Sorry, cannot yet " + action + " nifti-1 datatype " + NiftiHeader.decodeDatatype(datatype));
+        }
+    }
+
+    /** The number of bytes used for one stored value, where a complex voxel holds two values. */
+    static int bytesPerValue(short datatype)
+    {
+        switch (datatype)
+        {
+        case NiftiHeader.NIFTI_TYPE_INT8:
+        case NiftiHeader.NIFTI_TYPE_UINT8:
+            return 1;
+        case NiftiHeader.NIFTI_TYPE_INT16:
+        case NiftiHeader.NIFTI_TYPE_UINT16:
+            return 2;
+        case NiftiHeader.NIFTI_TYPE_INT32:
+        case NiftiHeader.NIFTI_TYPE_UINT32:
+        case NiftiHeader.NIFTI_TYPE_FLOAT32:
+        case NiftiHeader.NIFTI_TYPE_COMPLEX64:
+            return 4;
+        case NiftiHeader.NIFTI_TYPE_INT64:
+        case NiftiHeader.NIFTI_TYPE_UINT64:
+        case NiftiHeader.NIFTI_TYPE_FLOAT64:
+            return 8;
+        default:
+            throw new IllegalArgumentException("unsupported datatype " + NiftiHeader.decodeDatatype(datatype));
+        }
+    }
+
+    static ByteOrder order(NiftiHeader hdr)
+    {
+        return hdr.little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    /** The slope to pass to the decoder, which is zero when the header does not change the values. */
+    static double slope(NiftiHeader hdr)
+    {
+        boolean scaled = hdr.scl_slope != 0 && (hdr.scl_slope != 1 || hdr.scl_inter != 0);
+        return scaled ? hdr.scl_slope : 0;
+    }
+
+    /** Decode a single value at an absolute position of a buffer. */
+    static double value(ByteBuffer src, int pos, short datatype)
+    {
+        switch (datatype)
+        {
+        case NiftiHeader.NIFTI_TYPE_INT8:
+            return src.get(pos);
+        case NiftiHeader.NIFTI_TYPE_UINT8:
+            return src.get(pos) & 0xff;
+        case NiftiHeader.NIFTI_TYPE_INT16:
+            return src.getShort(pos);
+        case NiftiHeader.NIFTI_TYPE_UINT16:
+            return src.getShort(pos) & 0xffff;
+        case NiftiHeader.NIFTI_TYPE_INT32:
+            return src.getInt(pos);
+        case NiftiHeader.NIFTI_TYPE_UINT32:
+            return src.getInt(pos) & 0xffffffffL;
+        case NiftiHeader.NIFTI_TYPE_INT64:
+            return src.getLong(pos);
+        case NiftiHeader.NIFTI_TYPE_UINT64:
+            return unsigned(src.getLong(pos));
+        case NiftiHeader.NIFTI_TYPE_FLOAT32:
+        case NiftiHeader.NIFTI_TYPE_COMPLEX64:
+            return src.getFloat(pos);
+        default:
+            return src.getDouble(pos);
+        }
+    }
+
+    /** Encode a single value at an absolute position of a buffer, truncating integers towards zero as files have always been written. */
+    static void put(ByteBuffer dst, int pos, short datatype, double v)
+    {
+        switch (datatype)
+        {
+        case NiftiHeader.NIFTI_TYPE_INT8:
+        case NiftiHeader.NIFTI_TYPE_UINT8:
+            dst.put(pos, (byte) (int) v);
+            break;
+        case NiftiHeader.NIFTI_TYPE_INT16:
+        case NiftiHeader.NIFTI_TYPE_UINT16:
+            dst.putShort(pos, (short) (int) v);
+            break;
+        case NiftiHeader.NIFTI_TYPE_INT32:
+            dst.putInt(pos, (int) v);
+            break;
+        case NiftiHeader.NIFTI_TYPE_UINT32:
+            dst.putInt(pos, (int) (long) v);
+            break;
+        case NiftiHeader.NIFTI_TYPE_INT64:
+        case NiftiHeader.NIFTI_TYPE_UINT64:
+            dst.putLong(pos, (long) Math.rint(v));
+            break;
+        case NiftiHeader.NIFTI_TYPE_FLOAT32:
+        case NiftiHeader.NIFTI_TYPE_COMPLEX64:
+            dst.putFloat(pos, (float) v);
+            break;
+        default:
+            dst.putDouble(pos, v);
+        }
+    }
+
+    static double unsigned(long v)
+    {
+        return v < 0 ? v + 18446744073709551616d : v;
+    }
+
+    /** Move the position of a buffer without binding to the covariant overrides of newer JDKs. */
+    static void position(Buffer buffer, int pos)
+    {
+        buffer.position(pos);
+    }
+
+    /** Decode all voxels of a volume from a stream positioned at the first voxel.
+     *
+     * @param is the uncompressed stream
+     * @param hdr the header describing the voxels
+     * @param dst the storage receiving the voxels, which must hold exactly the voxels of the volume
+     * @param scale whether to apply scl_slope and scl_inter, or to keep the values as they are encoded
+     * @throws IOException
+     */
+    static void decode(InputStream is, NiftiHeader hdr, VoxelStorage dst, boolean scale) throws IOException
+    {
+        decode(is, hdr, dst, buffer(hdr), scale);
+    }
+
+    /** A heap buffer of {@link #CHUNK_BYTES} bytes in the byte order of a header, for reuse across calls to decode. */
+    static ByteBuffer buffer(NiftiHeader hdr)
+    {
+        return ByteBuffer.wrap(new byte[CHUNK_BYTES]).order(order(hdr));
+    }
+
+    /** Decode all voxels of a volume from a stream positioned at the first voxel, using the given heap buffer. */
+    static void decode(InputStream is, NiftiHeader hdr, VoxelStorage dst, ByteBuffer buffer, boolean scale) throws IOException
+    {
+        decode(is, hdr, dst, buffer, scale, null);
+    }
+
+    /** Decode all voxels of a volume, adding the scaled values of every chunk to the statistics, if any, while it is in cache. */
+    static void decode(InputStream is, NiftiHeader hdr, VoxelStorage dst, ByteBuffer buffer, boolean scale, VoxelStatistics stats) throws IOException
+    {
+        check(hdr.datatype, "read");
+
+        short datatype = hdr.datatype;
+        int bytes = bytesPerValue(datatype);
+        double slope = scale ? slope(hdr) : 0;
+        double inter = hdr.scl_inter;
+        byte[] chunk = buffer.array();
+
+        // unscaled values of a scaled file are scaled for the statistics only
+        boolean lazy = !scale && slope(hdr) != 0;
+
+        long total = dst.size();
+        for (long idx = 0; idx < total; )
+        {
+            int count = (int) Math.min(total - idx, chunk.length / bytes);
+            readFully(is, chunk, count * bytes);
+            position(buffer, 0);
+            dst.decode(buffer, datatype, slope, inter, idx, count);
+            if (stats != null)
+                stats.add(dst, idx, count, lazy ? slope(hdr) : 1, lazy ? inter : 0);
+            idx += count;
+        }
+    }
+
+    /** The datatype used to encode the voxels of a header, where the untyped codes have always been written as floats. */
+    static short encoding(NiftiHeader hdr)
+    {
+        if (hdr.datatype == NiftiHeader.DT_NONE || hdr.datatype == NiftiHeader.DT_BINARY)
+            return NiftiHeader.NIFTI_TYPE_FLOAT32;
+        return hdr.datatype;
+    }
+
+    /** Encode all voxels of a volume to a channel positioned after the header.
+     *
+     * @param out the channel receiving the uncompressed voxels
+     * @param hdr the header describing the encoding
+     * @param data the voxels, which must match the dimensions of the header
+     * @throws IOException
+     */
+    static void encode(WritableByteChannel out, NiftiHeader hdr, FourDimensionalArray data) throws IOException
+    {
+        encode(out, hdr, data, null);
+    }
+
+    /** Encode all voxels of a volume, adding the values of every chunk to the statistics, if any, while it is in cache. */
+    static void encode(WritableByteChannel out, NiftiHeader hdr, FourDimensionalArray data, VoxelStatistics stats) throws IOException
+    {
+        check(encoding(hdr), "write");
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BYTES).order(order(hdr));
+        int capacity = CHUNK_BYTES / bytesPerValue(encoding(hdr));
+
+        long total = data.storage().size();
+        for (long idx = 0; idx < total; )
+        {
+            int count = (int) Math.min(total - idx, capacity);
+            ((Buffer) buffer).clear();
+            encode(buffer, hdr, data, idx, count);
+            if (stats != null)
+                stats.add(data.storage(), idx, count, data.isScaled() ? data.slope() : 1, data.isScaled() ? data.inter() : 0);
+            ((Buffer) buffer).flip();
+            writeFully(out, buffer);
+            idx += count;
+        }
+    }
+
+    /** Encode consecutive voxels of a volume at the position of a buffer, which is advanced past them.
+     *
+     * @param dst the buffer receiving the values, in the byte order of the header
+     * @param hdr the header describing the encoding
+     * @param data the voxels
+     * @param start the index of the first voxel to encode
+     * @param count the number of values to encode
+     */
+    static void encode(ByteBuffer dst, NiftiHeader hdr, FourDimensionalArray data, long start, int count)
+    {
+        short datatype = encoding(hdr);
+        double slope = slope(hdr);
+        double inter = hdr.scl_inter;
+        VoxelStorage src = data.storage();
+
+        // values scaled lazily with the scaling of the header are written back as they are stored
+        boolean raw = data.isScaled() && data.slope() == slope && data.inter() == inter;
+
+        if (raw)
+            src.encode(dst, datatype, 0, 0, start, count);
+        else if (data.isScaled())
+            encodeScaled(dst, datatype, slope, inter, data, start, count);
+        else
+            src.encode(dst, datatype, slope, inter, start, count);
+    }
+
+    /** Encode values of an array that applies its own scaling on top of the stored values. */
+    private static void encodeScaled(ByteBuffer dst, short datatype, double slope, double inter, FourDimensionalArray data, long start, int count)
+    {
+        VoxelStorage src = data.storage();
+        double fslope = data.slope();
+        double finter = data.inter();
+        int bytes = bytesPerValue(datatype);
+        int pos = dst.position();
+        for (int i = 0; i < count; i++, pos += bytes)
+        {
+            double v = src.get(start + i) * fslope + finter;
+            put(dst, pos, datatype, slope != 0 ? (v - inter) / slope : v);
+        }
+        position(dst, pos);
+    }
+
+    static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    static void readFully(InputStream is, byte[] b, int len) throws IOException
+    {
+        int off = 0;
+        while (off < len)
+        {
+            int n = is.read(b, off, len - off);
+            if (n < 0)
+                throw new EOFException("unexpected end of voxel data");
+            off += n;
+        }
+    }
+
+    static void skipFully(InputStream is, long len) throws IOException
+    {
+        while (len > 0)
+        {
+            long n = is.skip(len);
+            if (n <= 0)
+            {
+                if (is.read() < 0)
+                    throw new EOFException("unexpected end of file before voxel data");
+                n = 1;
+            }
+            len -= n;
+        }
+    }
+}
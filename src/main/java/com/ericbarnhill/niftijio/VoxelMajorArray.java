@@ -0,0 +1,178 @@
+package com.ericbarnhill.niftijio;
+
+/**
+ * Four-dimensional array stored voxel by voxel, for access to the time series of each voxel.
+ * <p/>
+ * A {@link FourDimensionalArray} keeps the fourth index outermost, so the values of a single voxel
+ * are nx*ny*nz values apart and reading a time series touches a different cache line for each of
+ * them.  Here the fourth index varies fastest, so the time series of a voxel is one contiguous run
+ * and a loop over the voxels of a volume scans the storage in order.
+ * <p/>
+ * The accessors match those of {@link FourDimensionalArray}, including the scaling of the double
+ * valued methods.  Arrays are copied from and back to the linear layout, which is the one written
+ * to files, with a blocked transpose that runs in parallel on the common fork/join pool.
+ */
+public class VoxelMajorArray
+{
+    private final VoxelStorage data;
+    private final int nx, ny, nz, dim;
+    private boolean scaled = false;
+    private double slope = 1, inter = 0;
+
+    /** Create an array of zeros.
+     *
+     * @param datatype the NIFTI datatype used to hold the voxels in memory
+     */
+    public VoxelMajorArray(int nx, int ny, int nz, int dim, short datatype)
+    {
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.dim = dim;
+        this.data = VoxelStorage.create(datatype, (long) nx * ny * nz * dim);
+    }
+
+    /** Copy a linear array, keeping its datatype and scaling. */
+    public VoxelMajorArray(FourDimensionalArray src)
+    {
+        this(src.sizeX(), src.sizeY(), src.sizeZ(), src.dimension(), src.datatype());
+        setScaling(src.slope(), src.inter());
+        VoxelTasks.transpose(src.storage(), data, (long) nx * ny * nz, dim, true);
+    }
+
+    /** Copy the voxels back into a linear array with the same datatype and scaling. */
+    public FourDimensionalArray toLinear()
+    {
+        FourDimensionalArray out = new FourDimensionalArray(nx, ny, nz, dim, data.datatype());
+        out.setScaling(slope, inter);
+        VoxelTasks.transpose(data, out.storage(), (long) nx * ny * nz, dim, false);
+        return out;
+    }
+
+    private long index(int x, int y, int z, int d)
+    {
+        return ((((long) z * ny + y) * nx) + x) * dim + d;
+    }
+
+    public double get(int x, int y, int z, int d)
+    {
+        double v = data.get(index(x, y, z, d));
+        return scaled ? v * slope + inter : v;
+    }
+
+    public void set(int x, int y, int z, int d, double val)
+    {
+        data.set(index(x, y, z, d), scaled ? (val - inter) / slope : val);
+    }
+
+    /** Scale the stored values when they are accessed as doubles, see {@link FourDimensionalArray#setScaling}. */
+    public void setScaling(double slope, double inter)
+    {
+        this.scaled = slope != 0 && (slope != 1 || inter != 0);
+        this.slope = scaled ? slope : 1;
+        this.inter = scaled ? inter : 0;
+    }
+
+    /** Copy the time series of the voxel at x, y and z into dst, which holds at least {@link #dimension()} values. */
+    public void getTimeSeries(int x, int y, int z, double[] dst)
+    {
+        data.get(index(x, y, z, 0), dst, 0, dim);
+        if (scaled)
+            for (int d = 0; d < dim; d++)
+                dst[d] = dst[d] * slope + inter;
+    }
+
+    /** Set the time series of the voxel at x, y and z from src. */
+    public void setTimeSeries(int x, int y, int z, double[] src)
+    {
+        if (scaled)
+        {
+            double[] raw = new double[dim];
+            for (int d = 0; d < dim; d++)
+                raw[d] = (src[d] - inter) / slope;
+            src = raw;
+        }
+        data.set(index(x, y, z, 0), src, 0, dim);
+    }
+
+    /** A view of the time series of the voxel at x, y and z, which reads and writes this array. */
+    public TimeSeries timeSeries(int x, int y, int z)
+    {
+        return new TimeSeries(index(x, y, z, 0));
+    }
+
+    /** The values of one voxel along the fourth dimension, stored contiguously in the array. */
+    public final class TimeSeries
+    {
+        private final long start;
+
+        private TimeSeries(long start)
+        {
+            this.start = start;
+        }
+
+        public int length() {return dim;}
+
+        public double get(int d)
+        {
+            double v = data.get(start + d);
+            return scaled ? v * slope + inter : v;
+        }
+
+        public void set(int d, double val)
+        {
+            data.set(start + d, scaled ? (val - inter) / slope : val);
+        }
+
+        /** Copy the values into dst, which holds at least {@link #length()} values. */
+        public void get(double[] dst)
+        {
+            data.get(start, dst, 0, dim);
+            if (scaled)
+                for (int d = 0; d < dim; d++)
+                    dst[d] = dst[d] * slope + inter;
+        }
+
+        /** Set the values from src. */
+        public void set(double[] src)
+        {
+            if (scaled)
+            {
+                double[] raw = new double[dim];
+                for (int d = 0; d < dim; d++)
+                    raw[d] = (src[d] - inter) / slope;
+                src = raw;
+            }
+            data.set(start, src, 0, dim);
+        }
+
+        public double[] toArray()
+        {
+            double[] out = new double[dim];
+            get(out);
+            return out;
+        }
+    }
+
+    public boolean isScaled() {return scaled;}
+    public double slope() {return slope;}
+    public double inter() {return inter;}
+
+    public byte getByte(int x, int y, int z, int d) {return data.getByte(index(x, y, z, d));}
+    public void setByte(int x, int y, int z, int d, byte val) {data.setByte(index(x, y, z, d), val);}
+    public short getShort(int x, int y, int z, int d) {return data.getShort(index(x, y, z, d));}
+    public void setShort(int x, int y, int z, int d, short val) {data.setShort(index(x, y, z, d), val);}
+    public int getInt(int x, int y, int z, int d) {return data.getInt(index(x, y, z, d));}
+    public void setInt(int x, int y, int z, int d, int val) {data.setInt(index(x, y, z, d), val);}
+    public float getFloat(int x, int y, int z, int d) {return data.getFloat(index(x, y, z, d));}
+    public void setFloat(int x, int y, int z, int d, float val) {data.setFloat(index(x, y, z, d), val);}
+    public double getDouble(int x, int y, int z, int d) {return data.getDouble(index(x, y, z, d));}
+    public void setDouble(int x, int y, int z, int d, double val) {data.setDouble(index(x, y, z, d), val);}
+
+    public int sizeX() {return nx;}
+    public int sizeY() {return ny;}
+    public int sizeZ() {return nz;}
+    public int dimension() {return dim;}
+    public short datatype() {return data.datatype();}
+    public VoxelStorage storage() {return data;}
+}
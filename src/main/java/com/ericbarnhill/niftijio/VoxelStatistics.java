@@ -0,0 +1,227 @@
+package com.ericbarnhill.niftijio;
+
+/**
+ * Summary statistics of the voxels of a volume, accumulated while they are decoded or encoded.
+ * <p/>
+ * The count, minimum, maximum, sum and sum of squares are kept for every value, and a histogram with
+ * a fixed number of equal bins is kept when a range is given, where values outside of the range are
+ * counted as underflow or overflow.  NaN values are counted separately and otherwise ignored.  The
+ * values are those returned by {@link FourDimensionalArray#get}, i.e. with the scaling applied, and a
+ * complex voxel contributes its real and imaginary parts as two values.  A read or write fills one
+ * accumulator for the whole file; for statistics of each frame, add the frames of a
+ * {@link NiftiFrameReader} to one accumulator each.
+ */
+public class VoxelStatistics
+{
+    /** The number of values copied out of the storage at once. */
+    private static final int BLOCK = 1 << 12;
+
+    private final int bins;
+    private final double lower;
+    private final double upper;
+    private final double scale;
+    private final long[] histogram;
+    private long underflow = 0;
+    private long overflow = 0;
+
+    private long count = 0;
+    private long nan = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum = 0;
+    private double sumsq = 0;
+
+    private double[] block;
+
+    /** Create statistics without a histogram. */
+    public VoxelStatistics()
+    {
+        this(0, 0, 1);
+    }
+
+    /** Create statistics with a histogram.
+     *
+     * @param bins the number of bins, or zero for no histogram
+     * @param lower the lower bound of the first bin
+     * @param upper the upper bound of the last bin, which includes it
+     */
+    public VoxelStatistics(int bins, double lower, double upper)
+    {
+        if (bins < 0 || !(upper > lower))
+            throw new IllegalArgumentException("invalid histogram of " + bins + " bins from " + lower + " to " + upper);
+
+        this.bins = bins;
+        this.lower = lower;
+        this.upper = upper;
+        this.scale = bins / (upper - lower);
+        this.histogram = new long[bins];
+    }
+
+    /** Add one value. */
+    public void add(double v)
+    {
+        if (v != v)
+        {
+            nan++;
+            return;
+        }
+
+        count++;
+        if (v < min)
+            min = v;
+        if (v > max)
+            max = v;
+        sum += v;
+        sumsq += v * v;
+
+        if (bins > 0)
+        {
+            if (v < lower)
+                underflow++;
+            else if (v > upper)
+                overflow++;
+            else
+                histogram[Math.min((int) ((v - lower) * scale), bins - 1)]++;
+        }
+    }
+
+    /** Add the statistics of another accumulator with the same histogram, e.g. one filled by another thread. */
+    public void add(VoxelStatistics other)
+    {
+        if (other.bins != bins || other.lower != lower || other.upper != upper)
+            throw new IllegalArgumentException("histograms do not match");
+
+        count += other.count;
+        nan += other.nan;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        sumsq += other.sumsq;
+        underflow += other.underflow;
+        overflow += other.overflow;
+        for (int i = 0; i < bins; i++)
+            histogram[i] += other.histogram[i];
+    }
+
+    /** Add all values of an array. */
+    public void add(FourDimensionalArray data)
+    {
+        add(data.storage(), 0, data.storage().size(), data.isScaled() ? data.slope() : 1, data.isScaled() ? data.inter() : 0);
+    }
+
+    /** Add stored values that were just decoded or are about to be encoded, applying a scaling to them. */
+    void add(VoxelStorage src, long start, long n, double slope, double inter)
+    {
+        if (block == null)
+            block = new double[BLOCK];
+
+        for (long off = 0; off < n; )
+        {
+            int m = (int) Math.min(n - off, BLOCK);
+            src.get(start + off, block, 0, m);
+            if (slope != 1 || inter != 0)
+                for (int i = 0; i < m; i++)
+                    block[i] = block[i] * slope + inter;
+            add(block, m);
+            off += m;
+        }
+    }
+
+    /** Add values with the running sums kept in locals. */
+    private void add(double[] values, int m)
+    {
+        double lo = min, hi = max, s = sum, ss = sumsq;
+        long c = 0;
+        for (int i = 0; i < m; i++)
+        {
+            double v = values[i];
+            if (v != v)
+                continue;
+            c++;
+            lo = Math.min(lo, v);
+            hi = Math.max(hi, v);
+            s += v;
+            ss += v * v;
+        }
+        min = lo;
+        max = hi;
+        sum = s;
+        sumsq = ss;
+        count += c;
+        nan += m - c;
+
+        if (bins > 0)
+            for (int i = 0; i < m; i++)
+            {
+                double v = values[i];
+                if (v < lower)
+                    underflow++;
+                else if (v > upper)
+                    overflow++;
+                else if (v == v)
+                    histogram[Math.min((int) ((v - lower) * scale), bins - 1)]++;
+            }
+    }
+
+    /** Store the range in the display range and the global range of a header. */
+    public void update(NiftiHeader hdr)
+    {
+        if (count == 0)
+            return;
+
+        hdr.cal_min = (float) min;
+        hdr.cal_max = (float) max;
+        hdr.glmin = clamp(Math.floor(min));
+        hdr.glmax = clamp(Math.ceil(max));
+    }
+
+    private static int clamp(double v)
+    {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, v));
+    }
+
+    /** The number of values that are not NaN. */
+    public long count() {return count;}
+    /** The number of NaN values. */
+    public long nanCount() {return nan;}
+    /** The smallest value, or positive infinity if there are none. */
+    public double min() {return min;}
+    /** The largest value, or negative infinity if there are none. */
+    public double max() {return max;}
+    public double sum() {return sum;}
+    public double sumOfSquares() {return sumsq;}
+
+    /** The mean of the values, or NaN if there are none. */
+    public double mean()
+    {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /** The population variance of the values, or NaN if there are none. */
+    public double variance()
+    {
+        if (count == 0)
+            return Double.NaN;
+        double mean = sum / count;
+        return Math.max(sumsq / count - mean * mean, 0);
+    }
+
+    public double std()
+    {
+        return Math.sqrt(variance());
+    }
+
+    public int bins() {return bins;}
+    public double lower() {return lower;}
+    public double upper() {return upper;}
+    /** The number of values below the histogram range. */
+    public long underflow() {return underflow;}
+    /** The number of values above the histogram range. */
+    public long overflow() {return overflow;}
+
+    /** A copy of the counts of the histogram bins. */
+    public long[] histogram()
+    {
+        return histogram.clone();
+    }
+}
@@ -0,0 +1,870 @@
+package com.ericbarnhill.niftijio;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Flat backing store for the voxels of a {@link FourDimensionalArray}.
+ * <p/>
+ * Each implementation keeps the intensities in the narrowest java primitive that can hold the
+ * NIFTI datatype it was created for, so an 8-bit label map costs one byte per voxel instead of
+ * eight.  The double valued {@link #get(long)} and {@link #set(long, double)} methods convert to and
+ * from that primitive, while the typed accessors only work on the matching implementation and
+ * never box or widen the stored value.
+ * <p/>
+ * Voxels are addressed with long indices and kept in fixed-size pages of {@link #PAGE_BYTES} bytes,
+ * so volumes may hold more than 2^31 voxels and no single allocation is large enough to be treated
+ * as a humongous object by the garbage collector.
+ */
+public abstract class VoxelStorage implements Closeable
+{
+    /** The size of a single page in bytes, kept below half of the smallest G1 region. */
+    public static final int PAGE_BYTES = 1 << 18;
+
+    protected final short datatype;
+    protected final long size;
+    protected final int shift;
+    protected final int mask;
+
+    /**
+     * @param datatype the NIFTI datatype held by the storage
+     * @param size the number of voxels
+     * @param bytes the number of bytes used by one voxel, a power of two
+     */
+    protected VoxelStorage(short datatype, long size, int bytes)
+    {
+        this(datatype, size, bytes, PAGE_BYTES);
+    }
+
+    /**
+     * @param datatype the NIFTI datatype held by the storage
+     * @param size the number of voxels
+     * @param bytes the number of bytes used by one voxel, a power of two
+     * @param pageBytes the number of bytes in one page, a power of two
+     */
+    protected VoxelStorage(short datatype, long size, int bytes, int pageBytes)
+    {
+        if (size < 0)
+            throw new IllegalArgumentException("invalid voxel count: " + size);
+
+        this.datatype = datatype;
+        this.size = size;
+        this.shift = Integer.numberOfTrailingZeros(pageBytes / bytes);
+        this.mask = (1 << shift) - 1;
+    }
+
+    /** The number of pages needed for the voxels. */
+    protected int pages()
+    {
+        long count = (size + mask) >>> shift;
+        if (count > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many voxels: " + size);
+        return (int) count;
+    }
+
+    /** The number of voxels stored in the given page, which is only short for the last one. */
+    protected int pageLength(int page)
+    {
+        return (int) Math.min(size - ((long) page << shift), mask + 1L);
+    }
+
+    /** Create a storage holding size voxels of the given NIFTI datatype. */
+    public static VoxelStorage create(short datatype, long size)
+    {
+        switch (datatype)
+        {
+        case NiftiHeader.NIFTI_TYPE_INT8:
+        case NiftiHeader.NIFTI_TYPE_UINT8:
+            return new ByteStorage(datatype, size);
+        case NiftiHeader.NIFTI_TYPE_INT16:
+        case NiftiHeader.NIFTI_TYPE_UINT16:
+            return new ShortStorage(datatype, size);
+        case NiftiHeader.NIFTI_TYPE_INT32:
+        case NiftiHeader.NIFTI_TYPE_UINT32:
+            return new IntStorage(datatype, size);
+        case NiftiHeader.NIFTI_TYPE_FLOAT32:
+        case NiftiHeader.NIFTI_TYPE_COMPLEX64:
+            return new FloatStorage(datatype, size);
+        default:
+            return new DoubleStorage(NiftiHeader.NIFTI_TYPE_FLOAT64, size);
+        }
+    }
+
+    /** Choose the datatype that stores the intensities described by a header without loss.
+     *
+     * Scaled volumes are kept as doubles, since scl_slope and scl_inter turn the stored integers
+     * into real values, and 64-bit integers are kept as doubles as they have always been.
+     */
+    public static short storageType(NiftiHeader hdr)
+    {
+        boolean scaled = hdr.scl_slope != 0 && (hdr.scl_slope != 1 || hdr.scl_inter != 0);
+        if (scaled)
+            return NiftiHeader.NIFTI_TYPE_FLOAT64;
+        return rawType(hdr);
+    }
+
+    /** Choose the datatype that stores the values of a file as they are encoded, before any scaling. */
+    static short rawType(NiftiHeader hdr)
+    {
+        switch (hdr.datatype)
+        {
+        case NiftiHeader.NIFTI_TYPE_INT8:
+        case NiftiHeader.NIFTI_TYPE_UINT8:
+        case NiftiHeader.NIFTI_TYPE_INT16:
+        case NiftiHeader.NIFTI_TYPE_UINT16:
+        case NiftiHeader.NIFTI_TYPE_INT32:
+        case NiftiHeader.NIFTI_TYPE_UINT32:
+        case NiftiHeader.NIFTI_TYPE_FLOAT32:
+        case NiftiHeader.NIFTI_TYPE_COMPLEX64:
+            return hdr.datatype;
+        default:
+            return NiftiHeader.NIFTI_TYPE_FLOAT64;
+        }
+    }
+
+    /** The NIFTI datatype held by this storage. */
+    public short datatype()
+    {
+        return datatype;
+    }
+
+    /** The number of voxels. */
+    public long size()
+    {
+        return size;
+    }
+
+    /** The memory used by the voxel values, in bytes. */
+    public long sizeInBytes()
+    {
+        return size * NiftiHeader.bytesPerVoxel(datatype == NiftiHeader.NIFTI_TYPE_COMPLEX64 ? NiftiHeader.NIFTI_TYPE_FLOAT32 : datatype);
+    }
+
+    /** Release the memory held outside of the heap, if any, after which the storage must not be used.
+     *
+     * Storage on the heap is left to the garbage collector and stays usable.
+     */
+    public void close()
+    {
+    }
+
+    public abstract double get(long idx);
+
+    /** Set a voxel, rounding the value to the nearest integer and clamping it to the range of an integer datatype. */
+    public abstract void set(long idx, double val);
+
+    public byte getByte(long idx)
+    {
+        throw unsupported("byte");
+    }
+
+    public void setByte(long idx, byte val)
+    {
+        throw unsupported("byte");
+    }
+
+    public short getShort(long idx)
+    {
+        throw unsupported("short");
+    }
+
+    public void setShort(long idx, short val)
+    {
+        throw unsupported("short");
+    }
+
+    public int getInt(long idx)
+    {
+        throw unsupported("int");
+    }
+
+    public void setInt(long idx, int val)
+    {
+        throw unsupported("int");
+    }
+
+    public float getFloat(long idx)
+    {
+        throw unsupported("float");
+    }
+
+    public void setFloat(long idx, float val)
+    {
+        throw unsupported("float");
+    }
+
+    public double getDouble(long idx)
+    {
+        throw unsupported("double");
+    }
+
+    public void setDouble(long idx, double val)
+    {
+        throw unsupported("double");
+    }
+
+    /** Copy values of consecutive voxels into an array, converted to doubles.
+     *
+     * @param start the index of the first voxel
+     * @param dst the array receiving the values
+     * @param off the position of the first value in dst
+     * @param count the number of values
+     */
+    public void get(long start, double[] dst, int off, int count)
+    {
+        for (int i = 0; i < count; i++)
+            dst[off + i] = get(start + i);
+    }
+
+    /** Round a value to the nearest integer within a range, as integer storage holds it, where NaN becomes zero.
+     *
+     * Values unscaled by a lazy scaling are rarely whole numbers, and truncating them would move a
+     * value that is read back and set again by one step.
+     */
+    static long round(double val, long min, long max)
+    {
+        double r = Math.rint(val);
+        return r <= min ? min : r >= max ? max : (long) r;
+    }
+
+    /** Set consecutive voxels from an array, converting the values as {@link #set(long, double)} does.
+     *
+     * @param start the index of the first voxel
+     * @param src the array holding the values
+     * @param off the position of the first value in src
+     * @param count the number of values
+     */
+    public void set(long start, double[] src, int off, int count)
+    {
+        for (int i = 0; i < count; i++)
+            set(start + i, src[off + i]);
+    }
+
+    /** Decode values stored in the NIFTI layout into this storage.
+     *
+     * The values are read from the position of src, which is advanced past them.  Implementations
+     * override this with loops specialized for the datatypes they hold; this one converts each value
+     * separately.
+     *
+     * @param src the encoded values, in the byte order of the file
+     * @param type the NIFTI datatype of the encoded values
+     * @param slope the scaling applied to the decoded values, or zero to keep them unchanged
+     * @param inter the offset added to the scaled values
+     * @param start the index of the first voxel to fill
+     * @param count the number of values to decode
+     */
+    void decode(ByteBuffer src, short type, double slope, double inter, long start, int count)
+    {
+        int bytes = VoxelCodec.bytesPerValue(type);
+        int pos = src.position();
+        for (int i = 0; i < count; i++, pos += bytes)
+        {
+            double v = VoxelCodec.value(src, pos, type);
+            set(start + i, slope != 0 ? v * slope + inter : v);
+        }
+        VoxelCodec.position(src, pos);
+    }
+
+    /** Encode values of this storage in the NIFTI layout.
+     *
+     * The values are written at the position of dst, which is advanced past them.  Integers are
+     * truncated towards zero, as files have always been written, so a volume is written the same as
+     * before; unlike {@link #set(long, double)}, which rounds to the nearest integer.
+     *
+     * @param dst the buffer receiving the values, in the byte order of the file
+     * @param type the NIFTI datatype to encode
+     * @param slope the scaling removed from the values before encoding, or zero to keep them unchanged
+     * @param inter the offset removed from the values before encoding
+     * @param start the index of the first voxel to encode
+     * @param count the number of values to encode
+     */
+    void encode(ByteBuffer dst, short type, double slope, double inter, long start, int count)
+    {
+        int bytes = VoxelCodec.bytesPerValue(type);
+        int pos = dst.position();
+        for (int i = 0; i < count; i++, pos += bytes)
+        {
+            double v = get(start + i);
+            VoxelCodec.put(dst, pos, type, slope != 0 ? (v - inter) / slope : v);
+        }
+        VoxelCodec.position(dst, pos);
+    }
+
+    private UnsupportedOperationException unsupported(String type)
+    {
+        return new UnsupportedOperationException("cannot access " + NiftiHeader.decodeDatatype(datatype) + " storage as " + type);
+    }
+
+    static final class ByteStorage extends VoxelStorage
+    {
+        private final byte[][] data;
+        private final boolean unsigned;
+        private final long min, max;
+
+        ByteStorage(short datatype, long size)
+        {
+            super(datatype, size, 1);
+            this.data = new byte[pages()][];
+            for (int p = 0; p < data.length; p++)
+                data[p] = new byte[pageLength(p)];
+            this.unsigned = datatype == NiftiHeader.NIFTI_TYPE_UINT8;
+            this.min = unsigned ? 0 : Byte.MIN_VALUE;
+            this.max = unsigned ? 0xff : Byte.MAX_VALUE;
+        }
+
+        public double get(long idx)
+        {
+            byte v = data[(int) (idx >>> shift)][(int) idx & mask];
+            return unsigned ? v & 0xff : v;
+        }
+
+        public void set(long idx, double val)
+        {
+            data[(int) (idx >>> shift)][(int) idx & mask] = (byte) round(val, min, max);
+        }
+
+        public byte getByte(long idx) {return data[(int) (idx >>> shift)][(int) idx & mask];}
+        public void setByte(long idx, byte val) {data[(int) (idx >>> shift)][(int) idx & mask] = val;}
+
+        public void get(long start, double[] dst, int off, int count)
+        {
+            while (count > 0)
+            {
+                byte[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                for (int end = off + len; off < end; off++, i++)
+                    dst[off] = unsigned ? page[i] & 0xff : page[i];
+                start += len;
+                count -= len;
+            }
+        }
+
+        public void set(long start, double[] src, int off, int count)
+        {
+            while (count > 0)
+            {
+                byte[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                for (int end = off + len; off < end; off++, i++)
+                    page[i] = (byte) round(src[off], min, max);
+                start += len;
+                count -= len;
+            }
+        }
+
+        void decode(ByteBuffer src, short type, double slope, double inter, long start, int count)
+        {
+            if (slope != 0 || VoxelCodec.bytesPerValue(type) != 1)
+            {
+                super.decode(src, type, slope, inter, start, count);
+                return;
+            }
+
+            while (count > 0)
+            {
+                byte[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                src.get(page, off, len);
+                start += len;
+                count -= len;
+            }
+        }
+
+        void encode(ByteBuffer dst, short type, double slope, double inter, long start, int count)
+        {
+            if (slope != 0 || VoxelCodec.bytesPerValue(type) != 1)
+            {
+                super.encode(dst, type, slope, inter, start, count);
+                return;
+            }
+
+            while (count > 0)
+            {
+                byte[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                dst.put(page, off, len);
+                start += len;
+                count -= len;
+            }
+        }
+    }
+
+    static final class ShortStorage extends VoxelStorage
+    {
+        private final short[][] data;
+        private final boolean unsigned;
+        private final long min, max;
+
+        ShortStorage(short datatype, long size)
+        {
+            super(datatype, size, 2);
+            this.data = new short[pages()][];
+            for (int p = 0; p < data.length; p++)
+                data[p] = new short[pageLength(p)];
+            this.unsigned = datatype == NiftiHeader.NIFTI_TYPE_UINT16;
+            this.min = unsigned ? 0 : Short.MIN_VALUE;
+            this.max = unsigned ? 0xffff : Short.MAX_VALUE;
+        }
+
+        public double get(long idx)
+        {
+            short v = data[(int) (idx >>> shift)][(int) idx & mask];
+            return unsigned ? v & 0xffff : v;
+        }
+
+        public void set(long idx, double val)
+        {
+            data[(int) (idx >>> shift)][(int) idx & mask] = (short) round(val, min, max);
+        }
+
+        public short getShort(long idx) {return data[(int) (idx >>> shift)][(int) idx & mask];}
+        public void setShort(long idx, short val) {data[(int) (idx >>> shift)][(int) idx & mask] = val;}
+
+        public void get(long start, double[] dst, int off, int count)
+        {
+            while (count > 0)
+            {
+                short[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                for (int end = off + len; off < end; off++, i++)
+                    dst[off] = unsigned ? page[i] & 0xffff : page[i];
+                start += len;
+                count -= len;
+            }
+        }
+
+        public void set(long start, double[] src, int off, int count)
+        {
+            while (count > 0)
+            {
+                short[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                for (int end = off + len; off < end; off++, i++)
+                    page[i] = (short) round(src[off], min, max);
+                start += len;
+                count -= len;
+            }
+        }
+
+        void decode(ByteBuffer src, short type, double slope, double inter, long start, int count)
+        {
+            if (slope != 0 || VoxelCodec.bytesPerValue(type) != 2)
+            {
+                super.decode(src, type, slope, inter, start, count);
+                return;
+            }
+
+            ShortBuffer view = src.asShortBuffer();
+            VoxelCodec.position(src, src.position() + 2 * count);
+            while (count > 0)
+            {
+                short[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                view.get(page, off, len);
+                start += len;
+                count -= len;
+            }
+        }
+
+        void encode(ByteBuffer dst, short type, double slope, double inter, long start, int count)
+        {
+            if (slope != 0 || VoxelCodec.bytesPerValue(type) != 2)
+            {
+                super.encode(dst, type, slope, inter, start, count);
+                return;
+            }
+
+            ShortBuffer view = dst.asShortBuffer();
+            VoxelCodec.position(dst, dst.position() + 2 * count);
+            while (count > 0)
+            {
+                short[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                view.put(page, off, len);
+                start += len;
+                count -= len;
+            }
+        }
+    }
+
+    static final class IntStorage extends VoxelStorage
+    {
+        private final int[][] data;
+        private final boolean unsigned;
+        private final long min, max;
+
+        IntStorage(short datatype, long size)
+        {
+            super(datatype, size, 4);
+            this.data = new int[pages()][];
+            for (int p = 0; p < data.length; p++)
+                data[p] = new int[pageLength(p)];
+            this.unsigned = datatype == NiftiHeader.NIFTI_TYPE_UINT32;
+            this.min = unsigned ? 0 : Integer.MIN_VALUE;
+            this.max = unsigned ? 0xffffffffL : Integer.MAX_VALUE;
+        }
+
+        public double get(long idx)
+        {
+            int v = data[(int) (idx >>> shift)][(int) idx & mask];
+            return unsigned ? v & 0xffffffffL : v;
+        }
+
+        public void set(long idx, double val)
+        {
+            data[(int) (idx >>> shift)][(int) idx & mask] = (int) round(val, min, max);
+        }
+
+        public int getInt(long idx) {return data[(int) (idx >>> shift)][(int) idx & mask];}
+        public void setInt(long idx, int val) {data[(int) (idx >>> shift)][(int) idx & mask] = val;}
+
+        public void get(long start, double[] dst, int off, int count)
+        {
+            while (count > 0)
+            {
+                int[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                for (int end = off + len; off < end; off++, i++)
+                    dst[off] = unsigned ? page[i] & 0xffffffffL : page[i];
+                start += len;
+                count -= len;
+            }
+        }
+
+        public void set(long start, double[] src, int off, int count)
+        {
+            while (count > 0)
+            {
+                int[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                for (int end = off + len; off < end; off++, i++)
+                    page[i] = (int) round(src[off], min, max);
+                start += len;
+                count -= len;
+            }
+        }
+
+        void decode(ByteBuffer src, short type, double slope, double inter, long start, int count)
+        {
+            if (slope != 0 || (type != NiftiHeader.NIFTI_TYPE_INT32 && type != NiftiHeader.NIFTI_TYPE_UINT32))
+            {
+                super.decode(src, type, slope, inter, start, count);
+                return;
+            }
+
+            IntBuffer view = src.asIntBuffer();
+            VoxelCodec.position(src, src.position() + 4 * count);
+            while (count > 0)
+            {
+                int[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                view.get(page, off, len);
+                start += len;
+                count -= len;
+            }
+        }
+
+        void encode(ByteBuffer dst, short type, double slope, double inter, long start, int count)
+        {
+            if (slope != 0 || (type != NiftiHeader.NIFTI_TYPE_INT32 && type != NiftiHeader.NIFTI_TYPE_UINT32))
+            {
+                super.encode(dst, type, slope, inter, start, count);
+                return;
+            }
+
+            IntBuffer view = dst.asIntBuffer();
+            VoxelCodec.position(dst, dst.position() + 4 * count);
+            while (count > 0)
+            {
+                int[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                view.put(page, off, len);
+                start += len;
+                count -= len;
+            }
+        }
+    }
+
+    static final class FloatStorage extends VoxelStorage
+    {
+        private final float[][] data;
+
+        FloatStorage(short datatype, long size)
+        {
+            super(datatype, size, 4);
+            this.data = new float[pages()][];
+            for (int p = 0; p < data.length; p++)
+                data[p] = new float[pageLength(p)];
+        }
+
+        public double get(long idx) {return data[(int) (idx >>> shift)][(int) idx & mask];}
+        public void set(long idx, double val) {data[(int) (idx >>> shift)][(int) idx & mask] = (float) val;}
+
+        public float getFloat(long idx) {return data[(int) (idx >>> shift)][(int) idx & mask];}
+        public void setFloat(long idx, float val) {data[(int) (idx >>> shift)][(int) idx & mask] = val;}
+
+        public void get(long start, double[] dst, int off, int count)
+        {
+            while (count > 0)
+            {
+                float[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                for (int end = off + len; off < end; off++, i++)
+                    dst[off] = page[i];
+                start += len;
+                count -= len;
+            }
+        }
+
+        public void set(long start, double[] src, int off, int count)
+        {
+            while (count > 0)
+            {
+                float[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                for (int end = off + len; off < end; off++, i++)
+                    page[i] = (float) src[off];
+                start += len;
+                count -= len;
+            }
+        }
+
+        void decode(ByteBuffer src, short type, double slope, double inter, long start, int count)
+        {
+            if (slope != 0 || (type != NiftiHeader.NIFTI_TYPE_FLOAT32 && type != NiftiHeader.NIFTI_TYPE_COMPLEX64))
+            {
+                super.decode(src, type, slope, inter, start, count);
+                return;
+            }
+
+            FloatBuffer view = src.asFloatBuffer();
+            VoxelCodec.position(src, src.position() + 4 * count);
+            while (count > 0)
+            {
+                float[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                view.get(page, off, len);
+                start += len;
+                count -= len;
+            }
+        }
+
+        void encode(ByteBuffer dst, short type, double slope, double inter, long start, int count)
+        {
+            if (slope != 0 || (type != NiftiHeader.NIFTI_TYPE_FLOAT32 && type != NiftiHeader.NIFTI_TYPE_COMPLEX64))
+            {
+                super.encode(dst, type, slope, inter, start, count);
+                return;
+            }
+
+            FloatBuffer view = dst.asFloatBuffer();
+            VoxelCodec.position(dst, dst.position() + 4 * count);
+            while (count > 0)
+            {
+                float[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                view.put(page, off, len);
+                start += len;
+                count -= len;
+            }
+        }
+    }
+
+    static final class DoubleStorage extends VoxelStorage
+    {
+        private final double[][] data;
+
+        DoubleStorage(short datatype, long size)
+        {
+            super(datatype, size, 8);
+            this.data = new double[pages()][];
+            for (int p = 0; p < data.length; p++)
+                data[p] = new double[pageLength(p)];
+        }
+
+        public double get(long idx) {return data[(int) (idx >>> shift)][(int) idx & mask];}
+        public void set(long idx, double val) {data[(int) (idx >>> shift)][(int) idx & mask] = val;}
+
+        public double getDouble(long idx) {return data[(int) (idx >>> shift)][(int) idx & mask];}
+        public void setDouble(long idx, double val) {data[(int) (idx >>> shift)][(int) idx & mask] = val;}
+
+        public void get(long start, double[] dst, int off, int count)
+        {
+            while (count > 0)
+            {
+                double[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                System.arraycopy(page, i, dst, off, len);
+                off += len;
+                start += len;
+                count -= len;
+            }
+        }
+
+        public void set(long start, double[] src, int off, int count)
+        {
+            while (count > 0)
+            {
+                double[] page = data[(int) (start >>> shift)];
+                int i = (int) start & mask;
+                int len = Math.min(count, page.length - i);
+                System.arraycopy(src, off, page, i, len);
+                off += len;
+                start += len;
+                count -= len;
+            }
+        }
+
+        void decode(ByteBuffer src, short type, double slope, double inter, long start, int count)
+        {
+            int pos = src.position();
+            while (count > 0)
+            {
+                double[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                int end = off + len;
+
+                switch (type)
+                {
+                case NiftiHeader.NIFTI_TYPE_INT8:
+                    for (int i = off; i < end; i++, pos++)
+                        page[i] = src.get(pos);
+                    break;
+                case NiftiHeader.NIFTI_TYPE_UINT8:
+                    for (int i = off; i < end; i++, pos++)
+                        page[i] = src.get(pos) & 0xff;
+                    break;
+                case NiftiHeader.NIFTI_TYPE_INT16:
+                    for (int i = off; i < end; i++, pos += 2)
+                        page[i] = src.getShort(pos);
+                    break;
+                case NiftiHeader.NIFTI_TYPE_UINT16:
+                    for (int i = off; i < end; i++, pos += 2)
+                        page[i] = src.getShort(pos) & 0xffff;
+                    break;
+                case NiftiHeader.NIFTI_TYPE_INT32:
+                    for (int i = off; i < end; i++, pos += 4)
+                        page[i] = src.getInt(pos);
+                    break;
+                case NiftiHeader.NIFTI_TYPE_UINT32:
+                    for (int i = off; i < end; i++, pos += 4)
+                        page[i] = src.getInt(pos) & 0xffffffffL;
+                    break;
+                case NiftiHeader.NIFTI_TYPE_INT64:
+                    for (int i = off; i < end; i++, pos += 8)
+                        page[i] = src.getLong(pos);
+                    break;
+                case NiftiHeader.NIFTI_TYPE_UINT64:
+                    for (int i = off; i < end; i++, pos += 8)
+                        page[i] = VoxelCodec.unsigned(src.getLong(pos));
+                    break;
+                case NiftiHeader.NIFTI_TYPE_FLOAT32:
+                case NiftiHeader.NIFTI_TYPE_COMPLEX64:
+                    for (int i = off; i < end; i++, pos += 4)
+                        page[i] = src.getFloat(pos);
+                    break;
+                default:
+                    ByteBuffer view = src.duplicate().order(src.order());
+                    VoxelCodec.position(view, pos);
+                    view.asDoubleBuffer().get(page, off, len);
+                    pos += 8 * len;
+                }
+
+                if (slope != 0)
+                    for (int i = off; i < end; i++)
+                        page[i] = page[i] * slope + inter;
+
+                start += len;
+                count -= len;
+            }
+            VoxelCodec.position(src, pos);
+        }
+
+        void encode(ByteBuffer dst, short type, double slope, double inter, long start, int count)
+        {
+            int pos = dst.position();
+            while (count > 0)
+            {
+                double[] page = data[(int) (start >>> shift)];
+                int off = (int) start & mask;
+                int len = Math.min(count, page.length - off);
+                int end = off + len;
+
+                if (slope != 0 || type != NiftiHeader.NIFTI_TYPE_FLOAT64)
+                {
+                    switch (type)
+                    {
+                    case NiftiHeader.NIFTI_TYPE_INT8:
+                    case NiftiHeader.NIFTI_TYPE_UINT8:
+                        for (int i = off; i < end; i++, pos++)
+                            dst.put(pos, (byte) (int) unscale(page[i], slope, inter));
+                        break;
+                    case NiftiHeader.NIFTI_TYPE_INT16:
+                    case NiftiHeader.NIFTI_TYPE_UINT16:
+                        for (int i = off; i < end; i++, pos += 2)
+                            dst.putShort(pos, (short) (int) unscale(page[i], slope, inter));
+                        break;
+                    case NiftiHeader.NIFTI_TYPE_INT32:
+                        for (int i = off; i < end; i++, pos += 4)
+                            dst.putInt(pos, (int) unscale(page[i], slope, inter));
+                        break;
+                    case NiftiHeader.NIFTI_TYPE_UINT32:
+                        for (int i = off; i < end; i++, pos += 4)
+                            dst.putInt(pos, (int) (long) unscale(page[i], slope, inter));
+                        break;
+                    case NiftiHeader.NIFTI_TYPE_INT64:
+                    case NiftiHeader.NIFTI_TYPE_UINT64:
+                        for (int i = off; i < end; i++, pos += 8)
+                            dst.putLong(pos, (long) Math.rint(unscale(page[i], slope, inter)));
+                        break;
+                    case NiftiHeader.NIFTI_TYPE_FLOAT32:
+                    case NiftiHeader.NIFTI_TYPE_COMPLEX64:
+                        for (int i = off; i < end; i++, pos += 4)
+                            dst.putFloat(pos, (float) unscale(page[i], slope, inter));
+                        break;
+                    default:
+                        for (int i = off; i < end; i++, pos += 8)
+                            dst.putDouble(pos, unscale(page[i], slope, inter));
+                    }
+                }
+                else
+                {
+                    ByteBuffer view = dst.duplicate().order(dst.order());
+                    VoxelCodec.position(view, pos);
+                    view.asDoubleBuffer().put(page, off, len);
+                    pos += 8 * len;
+                }
+
+                start += len;
+                count -= len;
+            }
+            VoxelCodec.position(dst, pos);
+        }
+
+        private static double unscale(double v, double slope, double inter)
+        {
+            return slope != 0 ? (v - inter) / slope : v;
+        }
+    }
+}
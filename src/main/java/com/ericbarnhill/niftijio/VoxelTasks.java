@@ -0,0 +1,291 @@
+package com.ericbarnhill.niftijio;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoublePredicate;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Fork/join tasks over the voxels of a {@link FourDimensionalArray}.
+ * <p/>
+ * The storage is split in halves until a range holds at most {@link #GRAIN} voxels, and each range
+ * is processed in blocks copied in and out with the bulk accessors of the storage, so the tasks
+ * never touch the same voxels and the work per voxel is a plain loop over a double array.
+ * The same split drives the blocked transpose between the linear and the voxel-major layout.
+ */
+final class VoxelTasks
+{
+    /** The largest number of voxels processed by one task. */
+    static final int GRAIN = 1 << 16;
+
+    /** The number of voxels copied out of the storage at once. */
+    private static final int BLOCK = 1 << 12;
+
+    private VoxelTasks()
+    {
+    }
+
+    /** Replace every value of an array by the result of an operator. */
+    static void map(FourDimensionalArray data, DoubleUnaryOperator op)
+    {
+        ForkJoinPool.commonPool().invoke(new Map(data, null, op, null, 0, data.storage().size()));
+    }
+
+    /** Replace every value of an array by the result of an operator on it and the value of another array. */
+    static void combine(FourDimensionalArray data, FourDimensionalArray other, DoubleBinaryOperator op)
+    {
+        if (data.sizeX() != other.sizeX() || data.sizeY() != other.sizeY() || data.sizeZ() != other.sizeZ() || data.dimension() != other.dimension())
+            throw new IllegalArgumentException("arrays of " + data.sizeX() + "x" + data.sizeY() + "x" + data.sizeZ() + "x" + data.dimension()
+                    + " and " + other.sizeX() + "x" + other.sizeY() + "x" + other.sizeZ() + "x" + other.dimension() + " voxels differ");
+
+        ForkJoinPool.commonPool().invoke(new Map(data, other, null, op, 0, data.storage().size()));
+    }
+
+    /** Reduce the values of an array with an associative operator, starting each range from identity. */
+    static double reduce(FourDimensionalArray data, double identity, DoubleBinaryOperator op)
+    {
+        return ForkJoinPool.commonPool().invoke(new Reduce(data, identity, op, 0, data.storage().size()));
+    }
+
+    /** Count the values of an array that match a predicate. */
+    static long count(FourDimensionalArray data, DoublePredicate predicate)
+    {
+        return ForkJoinPool.commonPool().invoke(new Count(data, predicate, 0, data.storage().size()));
+    }
+
+    /** Copy the voxels of one storage into another, between the linear and the voxel-major layout.
+     *
+     * @param voxels the number of voxels of a volume, nx*ny*nz
+     * @param dim the number of volumes
+     * @param interleave whether from is linear, volume after volume, and to is voxel-major, or the reverse
+     */
+    static void transpose(VoxelStorage from, VoxelStorage to, long voxels, int dim, boolean interleave)
+    {
+        ForkJoinPool.commonPool().invoke(new Transpose(from, to, voxels, dim, interleave, 0, voxels));
+    }
+
+    /** The index that splits a range in halves, rounded down to a multiple of the grain. */
+    private static long split(long start, long end)
+    {
+        long mid = start + (end - start) / 2;
+        return Math.max(start + GRAIN, mid & ~((long) GRAIN - 1));
+    }
+
+    /** Copy values of an array into a block, with the scaling of the array applied. */
+    private static void load(FourDimensionalArray data, long start, double[] block, int n)
+    {
+        data.storage().get(start, block, 0, n);
+        if (data.isScaled())
+        {
+            double slope = data.slope(), inter = data.inter();
+            for (int i = 0; i < n; i++)
+                block[i] = block[i] * slope + inter;
+        }
+    }
+
+    /** Copy values from a block into an array, with the scaling of the array removed. */
+    private static void store(FourDimensionalArray data, long start, double[] block, int n)
+    {
+        if (data.isScaled())
+        {
+            double slope = data.slope(), inter = data.inter();
+            for (int i = 0; i < n; i++)
+                block[i] = (block[i] - inter) / slope;
+        }
+        data.storage().set(start, block, 0, n);
+    }
+
+    private static final class Map extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FourDimensionalArray data, other;
+        private final DoubleUnaryOperator unary;
+        private final DoubleBinaryOperator binary;
+        private final long start, end;
+
+        Map(FourDimensionalArray data, FourDimensionalArray other, DoubleUnaryOperator unary, DoubleBinaryOperator binary, long start, long end)
+        {
+            this.data = data;
+            this.other = other;
+            this.unary = unary;
+            this.binary = binary;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            if (end - start > GRAIN)
+            {
+                long mid = split(start, end);
+                invokeAll(new Map(data, other, unary, binary, start, mid), new Map(data, other, unary, binary, mid, end));
+                return;
+            }
+
+            double[] block = new double[(int) Math.min(BLOCK, end - start)];
+            double[] second = other != null ? new double[block.length] : null;
+            for (long idx = start; idx < end; idx += block.length)
+            {
+                int n = (int) Math.min(block.length, end - idx);
+                load(data, idx, block, n);
+                if (other != null)
+                {
+                    load(other, idx, second, n);
+                    for (int i = 0; i < n; i++)
+                        block[i] = binary.applyAsDouble(block[i], second[i]);
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                        block[i] = unary.applyAsDouble(block[i]);
+                }
+                store(data, idx, block, n);
+            }
+        }
+    }
+
+    private static final class Reduce extends RecursiveTask<Double>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FourDimensionalArray data;
+        private final double identity;
+        private final DoubleBinaryOperator op;
+        private final long start, end;
+
+        Reduce(FourDimensionalArray data, double identity, DoubleBinaryOperator op, long start, long end)
+        {
+            this.data = data;
+            this.identity = identity;
+            this.op = op;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected Double compute()
+        {
+            if (end - start > GRAIN)
+            {
+                long mid = split(start, end);
+                Reduce right = new Reduce(data, identity, op, mid, end);
+                right.fork();
+                double left = new Reduce(data, identity, op, start, mid).compute();
+                return op.applyAsDouble(left, right.join());
+            }
+
+            double out = identity;
+            double[] block = new double[(int) Math.min(BLOCK, end - start)];
+            for (long idx = start; idx < end; idx += block.length)
+            {
+                int n = (int) Math.min(block.length, end - idx);
+                load(data, idx, block, n);
+                for (int i = 0; i < n; i++)
+                    out = op.applyAsDouble(out, block[i]);
+            }
+            return out;
+        }
+    }
+
+    private static final class Count extends RecursiveTask<Long>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FourDimensionalArray data;
+        private final DoublePredicate predicate;
+        private final long start, end;
+
+        Count(FourDimensionalArray data, DoublePredicate predicate, long start, long end)
+        {
+            this.data = data;
+            this.predicate = predicate;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected Long compute()
+        {
+            if (end - start > GRAIN)
+            {
+                long mid = split(start, end);
+                Count right = new Count(data, predicate, mid, end);
+                right.fork();
+                long left = new Count(data, predicate, start, mid).compute();
+                return left + right.join();
+            }
+
+            long out = 0;
+            double[] block = new double[(int) Math.min(BLOCK, end - start)];
+            for (long idx = start; idx < end; idx += block.length)
+            {
+                int n = (int) Math.min(block.length, end - idx);
+                load(data, idx, block, n);
+                for (int i = 0; i < n; i++)
+                    if (predicate.test(block[i]))
+                        out++;
+            }
+            return out;
+        }
+    }
+
+    private static final class Transpose extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final VoxelStorage from, to;
+        private final long voxels;
+        private final int dim;
+        private final boolean interleave;
+        private final long start, end;
+
+        Transpose(VoxelStorage from, VoxelStorage to, long voxels, int dim, boolean interleave, long start, long end)
+        {
+            this.from = from;
+            this.to = to;
+            this.voxels = voxels;
+            this.dim = dim;
+            this.interleave = interleave;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            if ((end - start) * dim > GRAIN && end - start > 1)
+            {
+                long mid = start + (end - start) / 2;
+                invokeAll(new Transpose(from, to, voxels, dim, interleave, start, mid), new Transpose(from, to, voxels, dim, interleave, mid, end));
+                return;
+            }
+
+            // a tile of voxels holds one run per volume in the linear layout and a single run in the voxel-major one
+            int tile = (int) Math.min(Math.max(BLOCK / Math.max(dim, 1), 1), end - start);
+            double[] planes = new double[tile * dim];
+            double[] packed = new double[tile * dim];
+            for (long v = start; v < end; v += tile)
+            {
+                int m = (int) Math.min(tile, end - v);
+                if (interleave)
+                {
+                    for (int d = 0; d < dim; d++)
+                        from.get(d * voxels + v, planes, d * m, m);
+                    for (int d = 0; d < dim; d++)
+                        for (int i = 0, j = d; i < m; i++, j += dim)
+                            packed[j] = planes[d * m + i];
+                    to.set(v * dim, packed, 0, m * dim);
+                }
+                else
+                {
+                    from.get(v * dim, packed, 0, m * dim);
+                    for (int d = 0; d < dim; d++)
+                        for (int i = 0, j = d; i < m; i++, j += dim)
+                            planes[d * m + i] = packed[j];
+                    for (int d = 0; d < dim; d++)
+                        to.set(d * voxels + v, planes, d * m, m);
+                }
+            }
+        }
+    }
+}